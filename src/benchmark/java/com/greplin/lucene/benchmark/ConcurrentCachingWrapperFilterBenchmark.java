@@ -0,0 +1,71 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.ConcurrentCachingWrapperFilter;
+import com.greplin.lucene.filter.PhraseFilter;
+import org.apache.lucene.search.Filter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hits, shared between threads, against cache misses and computing
+ * the filter without a cache at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentCachingWrapperFilterBenchmark {
+
+  private Filter uncached;
+
+  private Filter cached;
+
+  @Setup
+  public void setUp(SyntheticIndex index) throws IOException {
+    String[] phrase = index.phrase(new Random(7), 2);
+    this.uncached = new PhraseFilter(SyntheticIndex.BODY, phrase);
+    this.cached = new ConcurrentCachingWrapperFilter(this.uncached);
+    SyntheticIndex.count(this.cached, index.getReader());
+  }
+
+  @Benchmark
+  public int uncached(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.uncached, index.getReader());
+  }
+
+  /**
+   * A fresh wrapper has an empty cache, so this computes the filter and
+   * stores the result for every segment.
+   */
+  @Benchmark
+  public int miss(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(new ConcurrentCachingWrapperFilter(this.uncached), index.getReader());
+  }
+
+  @Benchmark
+  public int cached(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.cached, index.getReader());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int cachedContended(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.cached, index.getReader());
+  }
+
+}
@@ -0,0 +1,107 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.FilterBitsProvider;
+import com.greplin.lucene.filter.FilteredIndexReader;
+import com.greplin.lucene.filter.TermsFilter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.util.FixedBitSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading postings and deletions through a filtered reader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilteredIndexReaderBenchmark {
+
+  private static final int QUERIES = 256;
+
+  @Param({"1", "5"})
+  public int visibleCategories;
+
+  private FilteredIndexReader filtered;
+
+  private Term[] terms;
+
+  private int next;
+
+  @Setup
+  public void setUp(SyntheticIndex index) {
+    Term[] categories = new Term[this.visibleCategories];
+    for (int i = 0; i < categories.length; i++) {
+      categories[i] = SyntheticIndex.categoryTerm(i);
+    }
+    this.filtered = FilteredIndexReader.wrap(index.getReader(),
+        new FilterBitsProvider(TermsFilter.from(categories)));
+
+    Random random = new Random(7);
+    this.terms = new Term[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      this.terms[i] = new Term(SyntheticIndex.BODY, index.zipfWord(random));
+    }
+  }
+
+  @Benchmark
+  public int termDocs() throws IOException {
+    this.next = (this.next + 1) % QUERIES;
+    TermDocs termDocs = this.filtered.termDocs(this.terms[this.next]);
+    int count = 0;
+    try {
+      while (termDocs.next()) {
+        count++;
+      }
+    } finally {
+      termDocs.close();
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int isDeleted() {
+    int count = 0;
+    for (int i = 0; i < this.filtered.maxDoc(); i++) {
+      if (!this.filtered.isDeleted(i)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int liveDocs() throws IOException {
+    FixedBitSet liveDocs = this.filtered.getLiveDocs();
+    int count = 0;
+    for (int i = 0; i < liveDocs.length(); i++) {
+      if (liveDocs.get(i)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int numDocs() {
+    return this.filtered.numDocs();
+  }
+
+}
@@ -0,0 +1,139 @@
+package com.greplin.lucene.benchmark;
+
+import com.google.common.collect.Sets;
+import com.greplin.lucene.filter.PhraseFilter;
+import com.greplin.lucene.filter.TermsFilter;
+import com.greplin.lucene.query.BooleanQueryBuilder;
+import com.greplin.lucene.util.FilterIntersectionProvider;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phrase filters against the equivalent phrase queries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhraseFilterBenchmark {
+
+  private static final int QUERIES = 256;
+
+  private static final int SLOP = 3;
+
+  @Param({"2", "4"})
+  public int phraseLength;
+
+  private PhraseFilter[] exact;
+
+  private PhraseFilter[] sloppy;
+
+  private Filter[] exactQueries;
+
+  private Filter[] sloppyQueries;
+
+  private PhraseFilter[] intersected;
+
+  private Filter[] intersectedQueries;
+
+  private int next;
+
+  @Setup
+  public void setUp(SyntheticIndex index) {
+    Random random = new Random(7);
+    this.exact = new PhraseFilter[QUERIES];
+    this.sloppy = new PhraseFilter[QUERIES];
+    this.exactQueries = new Filter[QUERIES];
+    this.sloppyQueries = new Filter[QUERIES];
+    this.intersected = new PhraseFilter[QUERIES];
+    this.intersectedQueries = new Filter[QUERIES];
+    FilterIntersectionProvider category =
+        new FilterIntersectionProvider(TermsFilter.from(SyntheticIndex.categoryTerm(0)));
+    for (int i = 0; i < QUERIES; i++) {
+      // Sloppy phrases can't repeat a term.
+      String[] phrase;
+      do {
+        phrase = index.phrase(random, this.phraseLength);
+      } while (Sets.newHashSet(phrase).size() < phrase.length);
+      this.exact[i] = new PhraseFilter(SyntheticIndex.BODY, phrase);
+      this.sloppy[i] = PhraseFilter.builder().slop(SLOP).add(SyntheticIndex.BODY, phrase).build();
+      this.exactQueries[i] = new QueryWrapperFilter(phraseQuery(phrase, 0));
+      this.sloppyQueries[i] = new QueryWrapperFilter(phraseQuery(phrase, SLOP));
+      this.intersected[i] = PhraseFilter.builder().intersectWith(category).add(SyntheticIndex.BODY, phrase).build();
+      this.intersectedQueries[i] = new QueryWrapperFilter(BooleanQueryBuilder.builder()
+          .must(new TermQuery(SyntheticIndex.categoryTerm(0)))
+          .must(phraseQuery(phrase, 0))
+          .build());
+    }
+  }
+
+  private static PhraseQuery phraseQuery(String[] phrase, int slop) {
+    PhraseQuery query = new PhraseQuery();
+    for (String word : phrase) {
+      query.add(new Term(SyntheticIndex.BODY, word));
+    }
+    query.setSlop(slop);
+    return query;
+  }
+
+  private int nextQuery() {
+    this.next = (this.next + 1) % QUERIES;
+    return this.next;
+  }
+
+  @Benchmark
+  public int exact(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.exact[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public int exactPhraseQuery(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.exactQueries[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public int sloppy(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.sloppy[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public int sloppyPhraseQuery(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.sloppyQueries[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public int intersected(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.intersected[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public int intersectedBooleanQuery(SyntheticIndex index) throws IOException {
+    return SyntheticIndex.count(this.intersectedQueries[nextQuery()], index.getReader());
+  }
+
+  @Benchmark
+  public boolean matchesAny(SyntheticIndex index) throws IOException {
+    return this.exact[nextQuery()].matchesAny(index.getReader());
+  }
+
+}
@@ -0,0 +1,116 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.predicate.BitsProvider;
+import com.greplin.lucene.predicate.BooleanPredicate;
+import com.greplin.lucene.predicate.Predicates;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document predicate evaluation: the interpreted tree from
+ * Predicates.and/or/not against the compiled and materialized forms.
+ * Scores are full passes over all documents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredicateBenchmark {
+
+  @Param("1000000")
+  public int docs;
+
+  /**
+   * and: a AND b AND NOT c.
+   * mixed: a AND (b OR c) AND NOT (d OR e).
+   */
+  @Param({"and", "mixed"})
+  public String shape;
+
+  private Bits interpreted;
+
+  private Bits compiled;
+
+  private Bits materialized;
+
+  private BitsProvider bits(Random random, double density) {
+    final FixedBitSet result = new FixedBitSet(this.docs);
+    for (int i = 0; i < this.docs; i++) {
+      if (random.nextDouble() < density) {
+        result.set(i);
+      }
+    }
+    return new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        return result;
+      }
+    };
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(7);
+    BitsProvider a = bits(random, 0.8);
+    BitsProvider b = bits(random, 0.5);
+    BitsProvider c = bits(random, 0.1);
+
+    BitsProvider tree;
+    if ("and".equals(this.shape)) {
+      tree = Predicates.and(a, b, Predicates.not(c));
+    } else {
+      BitsProvider d = bits(random, 0.05);
+      BitsProvider e = bits(random, 0.2);
+      tree = Predicates.and(a, Predicates.or(b, c), Predicates.not(Predicates.or(d, e)));
+    }
+
+    // None of the providers use the reader.
+    this.interpreted = tree.get(null);
+    this.compiled = Predicates.compile(tree).get(null);
+    this.materialized = ((BooleanPredicate) this.interpreted).materialize(this.docs);
+  }
+
+  private int count(Bits bits) {
+    int count = 0;
+    for (int i = 0; i < this.docs; i++) {
+      if (bits.get(i)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int interpreted() {
+    return count(this.interpreted);
+  }
+
+  @Benchmark
+  public int compiled() {
+    return count(this.compiled);
+  }
+
+  @Benchmark
+  public int materialized() {
+    return count(this.materialized);
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.FilterBitsProvider;
+import com.greplin.lucene.filter.TermsFilter;
+import com.greplin.lucene.query.PredicateQuery;
+import com.greplin.lucene.search.CountingCollector;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Predicate queries against the equivalent filtered queries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredicateQueryBenchmark {
+
+  private static final int QUERIES = 256;
+
+  private IndexSearcher searcher;
+
+  private Query[] predicateQueries;
+
+  private Query[] filteredQueries;
+
+  private int next;
+
+  @Setup
+  public void setUp(SyntheticIndex index) {
+    this.searcher = new IndexSearcher(index.getReader());
+    Random random = new Random(7);
+    this.predicateQueries = new Query[QUERIES];
+    this.filteredQueries = new Query[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      TermQuery query = new TermQuery(new Term(SyntheticIndex.BODY, index.zipfWord(random)));
+      TermsFilter filter = TermsFilter.from(
+          SyntheticIndex.categoryTerm(random.nextInt(SyntheticIndex.CATEGORIES)));
+      this.predicateQueries[i] = new PredicateQuery(query, new FilterBitsProvider(filter));
+      this.filteredQueries[i] = new FilteredQuery(query, filter);
+    }
+  }
+
+  private int count(Query query) throws IOException {
+    CountingCollector collector = new CountingCollector();
+    this.searcher.search(query, collector);
+    return collector.getCount();
+  }
+
+  @Benchmark
+  public int predicateQuery() throws IOException {
+    this.next = (this.next + 1) % QUERIES;
+    return count(this.predicateQueries[this.next]);
+  }
+
+  @Benchmark
+  public int filteredQuery() throws IOException {
+    this.next = (this.next + 1) % QUERIES;
+    return count(this.filteredQueries[this.next]);
+  }
+
+}
@@ -0,0 +1,56 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.PrefixFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefix filters over body words.  Shorter prefixes expand to more terms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefixFilterBenchmark {
+
+  private static final int QUERIES = 256;
+
+  @Param({"1", "2", "3"})
+  public int prefixLength;
+
+  private PrefixFilter[] filters;
+
+  private int next;
+
+  @Setup
+  public void setUp(SyntheticIndex index) {
+    Random random = new Random(7);
+    this.filters = new PrefixFilter[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      String word = index.zipfWord(random);
+      this.filters[i] = new PrefixFilter(SyntheticIndex.BODY, word.substring(0, this.prefixLength));
+    }
+  }
+
+  @Benchmark
+  public int prefixFilter(SyntheticIndex index) throws IOException {
+    this.next = (this.next + 1) % QUERIES;
+    return SyntheticIndex.count(this.filters[this.next], index.getReader());
+  }
+
+}
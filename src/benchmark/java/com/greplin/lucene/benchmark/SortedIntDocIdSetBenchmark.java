@@ -0,0 +1,118 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.SortedIntDocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Galloping advance in SortedIntDocIdSet against a linear scan, for
+ * increasing distances between advance targets.  The crossover is the
+ * smallest distance at which galloping wins.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortedIntDocIdSetBenchmark {
+
+  private static final int SET_SIZE = 100000;
+
+  private static final int MAX_GAP = 8;
+
+  /**
+   * Average number of set members skipped by each advance.
+   */
+  @Param({"1", "4", "16", "64", "1024", "16384"})
+  public int distance;
+
+  private int[] ints;
+
+  private SortedIntDocIdSet set;
+
+  private int step;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    this.ints = new int[SET_SIZE];
+    int doc = 0;
+    for (int i = 0; i < SET_SIZE; i++) {
+      doc += random.nextInt(MAX_GAP) + 1;
+      this.ints[i] = doc;
+    }
+    this.set = new SortedIntDocIdSet(this.ints);
+    this.step = this.distance * (this.ints[SET_SIZE - 1] / SET_SIZE);
+  }
+
+  private long run(DocIdSetIterator it) throws IOException {
+    long sum = 0;
+    int doc = it.nextDoc();
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      sum += doc;
+      doc = it.advance(doc + this.step);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long galloping() throws IOException {
+    return run(this.set.iterator());
+  }
+
+  @Benchmark
+  public long linear() throws IOException {
+    return run(new LinearIterator(this.ints));
+  }
+
+
+  /**
+   * The linear scanning iterator that SortedIntDocIdSet replaced.
+   */
+  private static final class LinearIterator extends DocIdSetIterator {
+
+    private final int[] ints;
+
+    private int index = -1;
+
+    private LinearIterator(int[] ints) {
+      this.ints = ints;
+    }
+
+    @Override
+    public int docID() {
+      return this.index < this.ints.length ? this.ints[this.index] : NO_MORE_DOCS;
+    }
+
+    @Override
+    public int nextDoc() {
+      ++this.index;
+      return docID();
+    }
+
+    @Override
+    public int advance(int target) {
+      while (nextDoc() < target) {
+        // Scan.
+      }
+      return docID();
+    }
+
+  }
+
+}
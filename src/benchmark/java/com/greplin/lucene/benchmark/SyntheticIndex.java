@@ -0,0 +1,171 @@
+package com.greplin.lucene.benchmark;
+
+import com.google.common.collect.Lists;
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic in-memory index shared by the benchmarks.  Body words follow a
+ * roughly Zipfian distribution, so phrases mix common and rare terms like
+ * natural text does.
+ */
+@State(Scope.Benchmark)
+public class SyntheticIndex {
+
+  public static final String BODY = "body";
+
+  public static final String CATEGORY = "category";
+
+  public static final int CATEGORIES = 10;
+
+  private static final int SAMPLED_DOCS = 1000;
+
+  @Param("100000")
+  public int docs;
+
+  @Param("4")
+  public int segments;
+
+  @Param("5000")
+  public int vocabulary;
+
+  @Param("50")
+  public int wordsPerDoc;
+
+  private Directory directory;
+
+  private IndexReader reader;
+
+  private String[] words;
+
+  private final List<String[]> sampledTexts = Lists.newArrayList();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Random random = new Random(42);
+    this.words = new String[this.vocabulary];
+    for (int i = 0; i < this.words.length; i++) {
+      this.words[i] = randomWord(random);
+    }
+
+    this.directory = new RAMDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, new WhitespaceAnalyzer(Version.LUCENE_35))
+        .setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES)
+        .setRAMBufferSizeMB(256);
+    IndexWriter writer = new IndexWriter(this.directory, config);
+    int docsPerSegment = Math.max(1, this.docs / this.segments);
+    for (int i = 0; i < this.docs; i++) {
+      String[] text = new String[this.wordsPerDoc];
+      for (int j = 0; j < text.length; j++) {
+        text[j] = zipfWord(random);
+      }
+      if (i < SAMPLED_DOCS) {
+        this.sampledTexts.add(text);
+      }
+
+      Document doc = new Document();
+      doc.add(new Field(BODY, join(text), Field.Store.NO, Field.Index.ANALYZED));
+      doc.add(new Field(CATEGORY, category(i % CATEGORIES), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+      if ((i + 1) % docsPerSegment == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    this.reader = IndexReader.open(this.directory);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.reader.close();
+    this.directory.close();
+  }
+
+  public IndexReader getReader() {
+    return this.reader;
+  }
+
+  /**
+   * @return a random word, common words being much likelier than rare ones
+   */
+  public String zipfWord(Random random) {
+    int index = (int) Math.pow(this.vocabulary, random.nextDouble()) - 1;
+    return this.words[index];
+  }
+
+  /**
+   * @return a phrase that occurs in at least one document
+   */
+  public String[] phrase(Random random, int length) {
+    String[] text = this.sampledTexts.get(random.nextInt(this.sampledTexts.size()));
+    String[] phrase = new String[length];
+    System.arraycopy(text, random.nextInt(text.length - length + 1), phrase, 0, length);
+    return phrase;
+  }
+
+  public static String category(int index) {
+    return "c" + index;
+  }
+
+  public static Term categoryTerm(int index) {
+    return new Term(CATEGORY, category(index));
+  }
+
+  /**
+   * Counts the documents a filter matches the way a searcher would, one
+   * segment at a time.
+   */
+  public static int count(Filter filter, IndexReader reader) throws IOException {
+    int count = 0;
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      DocIdSet docIdSet = filter.getDocIdSet(subReader);
+      DocIdSetIterator iterator = docIdSet == null ? null : docIdSet.iterator();
+      if (iterator != null) {
+        while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static String randomWord(Random random) {
+    char[] chars = new char[3 + random.nextInt(6)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+
+  private static String join(String[] text) {
+    StringBuilder result = new StringBuilder();
+    for (String word : text) {
+      result.append(word).append(' ');
+    }
+    return result.toString();
+  }
+
+}
@@ -0,0 +1,60 @@
+package com.greplin.lucene.benchmark;
+
+import com.greplin.lucene.filter.TermsFilter;
+import org.apache.lucene.index.Term;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Terms filters over body words of mixed frequency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TermsFilterBenchmark {
+
+  private static final int QUERIES = 256;
+
+  @Param({"1", "10", "100"})
+  public int termsPerFilter;
+
+  private TermsFilter[] filters;
+
+  private int next;
+
+  @Setup
+  public void setUp(SyntheticIndex index) {
+    Random random = new Random(7);
+    this.filters = new TermsFilter[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      Term[] terms = new Term[this.termsPerFilter];
+      for (int j = 0; j < terms.length; j++) {
+        terms[j] = new Term(SyntheticIndex.BODY, index.zipfWord(random));
+      }
+      this.filters[i] = TermsFilter.from(terms);
+    }
+  }
+
+  @Benchmark
+  public int termsFilter(SyntheticIndex index) throws IOException {
+    this.next = (this.next + 1) % QUERIES;
+    return SyntheticIndex.count(this.filters[this.next], index.getReader());
+  }
+
+}
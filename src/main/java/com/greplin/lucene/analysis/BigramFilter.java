@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+import java.io.IOException;
+
+/**
+ * Replaces a token stream with the bigrams of its adjacent tokens, each at
+ * the position of its first token.  For example, "the quick brown" becomes
+ * "the quick" at position 0 and "quick brown" at position 1.  This is what
+ * ShingleFilter produces with a maximum shingle size of 2 and no unigrams.
+ *
+ * Tokens separated by a position gap don't form a bigram, and tokens with a
+ * position increment of 0 (such as injected synonyms) are ignored.
+ *
+ * Indexing a field's text through this filter into a companion field lets
+ * {@link com.greplin.lucene.filter.PhraseFilter} resolve pairs of adjacent
+ * terms with a single seek.  The positions only line up with the original
+ * field for single-valued fields.
+ *
+ * Every stream also starts with the {@link #MARKER} term at position 0,
+ * even when it has no bigrams, so that readers can tell which documents
+ * were indexed through this filter.
+ */
+public final class BigramFilter extends TokenFilter {
+
+  /**
+   * Separates the two terms of a bigram.  Tokens can't contain it, or a
+   * bigram would be ambiguous with other pairs of tokens.
+   */
+  public static final char SEPARATOR = '\u0000';
+
+  /**
+   * Term emitted once per stream, which no bigram of non-empty tokens can
+   * equal.
+   */
+  public static final String MARKER = String.valueOf(SEPARATOR);
+
+  /**
+   * The term text.
+   */
+  private final CharTermAttribute termAtt =
+      addAttribute(CharTermAttribute.class);
+
+  /**
+   * The position increment.
+   */
+  private final PositionIncrementAttribute posIncAtt =
+      addAttribute(PositionIncrementAttribute.class);
+
+  /**
+   * The character offsets.
+   */
+  private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+  /**
+   * Text of the previous token.
+   */
+  private StringBuilder previous = new StringBuilder();
+
+  /**
+   * Text of the current token, while the bigram overwrites it.
+   */
+  private StringBuilder current = new StringBuilder();
+
+  /**
+   * Whether the marker has been emitted.
+   */
+  private boolean marked;
+
+  /**
+   * Whether there is a previous token.
+   */
+  private boolean hasPrevious;
+
+  /**
+   * Position of the previous token.
+   */
+  private int previousPosition;
+
+  /**
+   * Start offset of the previous token.
+   */
+  private int previousStart;
+
+  /**
+   * Position of the current input token.
+   */
+  private int position = -1;
+
+  /**
+   * Position of the last bigram emitted.
+   */
+  private int lastPosition = -1;
+
+
+  /**
+   * Creates a bigram filter.
+   * @param input the token stream to form bigrams from
+   */
+  public BigramFilter(final TokenStream input) {
+    super(input);
+  }
+
+
+  /**
+   * @param first the first term text
+   * @param second the second term text
+   * @return the text of the bigram of the two terms
+   */
+  public static String bigram(final String first, final String second) {
+    return first + SEPARATOR + second;
+  }
+
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (!this.marked) {
+      clearAttributes();
+      this.termAtt.setEmpty().append(MARKER);
+      this.posIncAtt.setPositionIncrement(1);
+      this.lastPosition = 0;
+      this.marked = true;
+      return true;
+    }
+
+    while (this.input.incrementToken()) {
+      int increment = this.posIncAtt.getPositionIncrement();
+      if (increment == 0 && this.hasPrevious) {
+        continue;
+      }
+      this.position += increment;
+
+      this.current.setLength(0);
+      this.current.append(this.termAtt);
+      int currentStart = this.offsetAtt.startOffset();
+
+      boolean adjacent = this.hasPrevious && increment == 1;
+      if (adjacent) {
+        this.termAtt.setEmpty()
+            .append(this.previous).append(SEPARATOR).append(this.current);
+        this.posIncAtt.setPositionIncrement(
+            this.previousPosition - this.lastPosition);
+        this.offsetAtt.setOffset(
+            this.previousStart, this.offsetAtt.endOffset());
+        this.lastPosition = this.previousPosition;
+      }
+
+      StringBuilder swap = this.previous;
+      this.previous = this.current;
+      this.current = swap;
+      this.previousPosition = this.position;
+      this.previousStart = currentStart;
+      this.hasPrevious = true;
+
+      if (adjacent) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    this.previous.setLength(0);
+    this.marked = false;
+    this.hasPrevious = false;
+    this.position = -1;
+    this.lastPosition = -1;
+  }
+
+}
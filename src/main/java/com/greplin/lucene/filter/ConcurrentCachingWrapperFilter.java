@@ -10,6 +10,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.Filter;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -17,10 +18,37 @@ import java.util.concurrent.ExecutionException;
 /**
  * The built-in CachingWrapperFilter will possibly compute the same filter more
  * than once due to a race condition between get and put.  This implementation
- * fixes that.  For simplicity, it only handles the IGNORE delete handling mode.
+ * fixes that.  Deleted documents are either ignored or masked out, see
+ * {@link DeletesMode}.
+ *
+ * By default each instance caches results for as long as their segments are
+ * alive.  Instances constructed with a {@link FilterCache} share its memory
+ * budget instead, along with the results of any equal underlying filters.
+ *
+ * In {@link DeletesMode#MASK} mode, results are still computed once per
+ * segment core, but deleted documents are removed up front with a
+ * word-level AND against the segment's live documents.  The masked result
+ * is cached per deletion generation, so iterating it never has to check
+ * for deletions document by document.
  */
 public class ConcurrentCachingWrapperFilter extends Filter {
 
+  /**
+   * How deleted documents are handled.
+   */
+  public static enum DeletesMode {
+    /**
+     * Deleted documents may be included in results.
+     */
+    IGNORE,
+
+    /**
+     * Deleted documents are masked out of results.
+     */
+    MASK
+  }
+
+
   /**
    * The underlying filter.
    */
@@ -28,31 +56,137 @@ public class ConcurrentCachingWrapperFilter extends Filter {
 
 
   /**
-   * The cache from reader key to doc id set.
+   * The cache from reader key to doc id set, or null when using a shared
+   * cache.
    */
+  @Nullable
   private final Cache<Object, DocIdSet> cache;
 
 
+  /**
+   * The shared cache, or null when using a private cache.
+   */
+  @Nullable
+  private final FilterCache sharedCache;
+
+
+  /**
+   * The delete handling mode.
+   */
+  private final DeletesMode deletesMode;
+
+
+  /**
+   * The cache from deletes key to masked doc id set, or null when deleted
+   * documents are ignored.
+   */
+  @Nullable
+  private final Cache<Object, DocIdSet> maskedCache;
+
+
   /**
    * Constructs a new wrapper for the given underlying filter.
    * @param underlying the underlying filter
    */
   public ConcurrentCachingWrapperFilter(final Filter underlying) {
+    this(underlying, DeletesMode.IGNORE);
+  }
+
+
+  /**
+   * Constructs a new wrapper for the given underlying filter.
+   * @param underlying the underlying filter
+   * @param deletesMode the delete handling mode
+   */
+  public ConcurrentCachingWrapperFilter(
+      final Filter underlying, final DeletesMode deletesMode) {
+    this(underlying, null, deletesMode);
+  }
+
+
+  /**
+   * Constructs a new wrapper for the given underlying filter that caches
+   * its results in a shared, memory bounded cache.
+   * @param underlying the underlying filter
+   * @param sharedCache the shared cache
+   */
+  public ConcurrentCachingWrapperFilter(
+      final Filter underlying, final FilterCache sharedCache) {
+    this(underlying, sharedCache, DeletesMode.IGNORE);
+  }
+
+
+  /**
+   * Constructs a new wrapper for the given underlying filter that caches
+   * its results in a shared, memory bounded cache.  Masked results are
+   * kept by this wrapper and do not count against the shared budget.
+   * @param underlying the underlying filter
+   * @param sharedCache the shared cache, or null to use a private cache
+   * @param deletesMode the delete handling mode
+   */
+  public ConcurrentCachingWrapperFilter(
+      final Filter underlying,
+      @Nullable final FilterCache sharedCache,
+      final DeletesMode deletesMode) {
     this.underlying = underlying;
-    this.cache = CacheBuilder.newBuilder().weakKeys().build();
+    this.sharedCache = sharedCache;
+    this.cache = sharedCache == null
+        ? CacheBuilder.newBuilder().weakKeys().<Object, DocIdSet>build()
+        : null;
+    this.deletesMode = deletesMode;
+    this.maskedCache = deletesMode == DeletesMode.MASK
+        ? CacheBuilder.newBuilder().weakKeys().<Object, DocIdSet>build()
+        : null;
   }
 
 
   @Override
   public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+    if (this.maskedCache != null && reader.hasDeletions()) {
+      Object deletesKey = reader.getDeletesCacheKey();
+      if (deletesKey != null) {
+        try {
+          return this.maskedCache.get(deletesKey, new MaskLoader(reader));
+        } catch (ExecutionException ex) {
+          throw propagate(ex);
+        }
+      }
+    }
+    return getCoreDocIdSet(reader);
+  }
+
+
+  /**
+   * Gets the cached result for the reader's core, ignoring deletions.
+   * @param reader the reader
+   * @return the cached doc id set
+   * @throws IOException if IO errors occur
+   */
+  private DocIdSet getCoreDocIdSet(final IndexReader reader)
+      throws IOException {
+    if (this.sharedCache != null) {
+      return this.sharedCache.getDocIdSet(this.underlying, reader);
+    }
     try {
       return this.cache.get(reader.getCoreCacheKey(), new FilterLoader(reader));
     } catch (ExecutionException ex) {
-      if (ex.getCause() instanceof IOException) {
-        throw (IOException) ex.getCause();
-      } else {
-        throw (RuntimeException) ex.getCause();
-      }
+      throw propagate(ex);
+    }
+  }
+
+
+  /**
+   * Unwraps the cause of a cache load failure.
+   * @param ex the exception thrown by the cache
+   * @return the unchecked cause, for callers to throw
+   * @throws IOException if the cause was an IOException
+   */
+  private static RuntimeException propagate(final ExecutionException ex)
+      throws IOException {
+    if (ex.getCause() instanceof IOException) {
+      throw (IOException) ex.getCause();
+    } else {
+      return (RuntimeException) ex.getCause();
     }
   }
 
@@ -87,4 +221,35 @@ public class ConcurrentCachingWrapperFilter extends Filter {
 
   }
 
+
+  /**
+   * Internal class for loading the masked cache.
+   */
+  private final class MaskLoader implements Callable<DocIdSet> {
+
+    /**
+     * The reader to load from.
+     */
+    private final IndexReader reader;
+
+
+    /**
+     * Constructs a mask loader for the given reader.
+     * @param reader the reader to load from.
+     */
+    private MaskLoader(final IndexReader reader) {
+      this.reader = reader;
+    }
+
+
+    @Override
+    public DocIdSet call() throws IOException {
+      return DocIdSets.mask(
+          getCoreDocIdSet(this.reader),
+          LiveDocs.get(this.reader),
+          this.reader.maxDoc());
+    }
+
+  }
+
 }
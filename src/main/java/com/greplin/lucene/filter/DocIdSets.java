@@ -11,6 +11,8 @@ import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.FilteredDocIdSet;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
@@ -85,6 +87,150 @@ public final class DocIdSets {
   }
 
 
+  /**
+   * Encodes sorted doc ids in whichever representation is smallest:
+   * - a FixedBitSet, which costs maxDoc / 8 bytes
+   * - a SortedIntDocIdSet, which costs 4 bytes per doc
+   * Both advance in sub-linear time, which matters because these sets are
+   * mostly intersected with other queries.  A SortedVIntList of gaps would
+   * be smaller at moderate densities, but can only advance linearly.
+   * @param docIds sorted array of distinct doc ids, which may be retained
+   * @param maxDoc the maxDoc of the reader the doc ids belong to
+   * @return the doc id set, which is cacheable
+   */
+  public static DocIdSet compact(
+      @Nullable final int[] docIds, final int maxDoc) {
+    if (docIds == null || docIds.length == 0) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+
+    final int bitsPerBytePowerLogTwo = 3; // 2^3 = 8
+    long bitSetBytes = maxDoc >> bitsPerBytePowerLogTwo;
+    long intBytes = (long) docIds.length * (Integer.SIZE / Byte.SIZE);
+
+    if (bitSetBytes < intBytes) {
+      FixedBitSet result = new FixedBitSet(maxDoc);
+      for (int docId : docIds) {
+        result.set(docId);
+      }
+      return result;
+    } else {
+      return new SortedIntDocIdSet(docIds);
+    }
+  }
+
+
+  /**
+   * Restricts a cacheable doc id set to live documents.  Bit sets are masked
+   * a word at a time; other sets are intersected with the mask and
+   * re-encoded with {@link #compact}.
+   * @param docIdSet the set to mask, which is not modified
+   * @param liveDocs the live documents, or null if there are no deletions
+   * @param maxDoc the maxDoc of the reader the doc ids belong to
+   * @return the masked doc id set, which is cacheable
+   * @throws IOException if IO errors occur
+   */
+  public static DocIdSet mask(@Nullable final DocIdSet docIdSet,
+                              @Nullable final FixedBitSet liveDocs,
+                              final int maxDoc) throws IOException {
+    if (docIdSet == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    } else if (liveDocs == null) {
+      return docIdSet;
+    } else if (docIdSet instanceof FixedBitSet) {
+      FixedBitSet result = new FixedBitSet((FixedBitSet) docIdSet);
+      result.and(liveDocs);
+      return result;
+    }
+
+    DocIdSetIterator it = docIdSet.iterator();
+    if (it == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    IntList docIds = new ArrayIntList();
+    for (int docId = it.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS;
+         docId = it.nextDoc()) {
+      if (liveDocs.get(docId)) {
+        docIds.add(docId);
+      }
+    }
+    return compact(docIds.toArray(), maxDoc);
+  }
+
+
+  /**
+   * Estimates the heap used by the contents of a doc id set, for weighing
+   * cache entries.  Object headers are not included.
+   * @param docIdSet the doc id set
+   * @return the estimated size in bytes, or -1 for sets of unknown types
+   */
+  public static long sizeInBytes(@Nullable final DocIdSet docIdSet) {
+    final int bytesPerLong = Long.SIZE / Byte.SIZE;
+    final int bytesPerInt = Integer.SIZE / Byte.SIZE;
+    if (docIdSet == null || docIdSet == DocIdSet.EMPTY_DOCIDSET
+        || docIdSet == EMPTY) {
+      return 0;
+    } else if (docIdSet instanceof FixedBitSet) {
+      return (long) ((FixedBitSet) docIdSet).getBits().length * bytesPerLong;
+    } else if (docIdSet instanceof OpenBitSet) {
+      return (long) ((OpenBitSet) docIdSet).getBits().length * bytesPerLong;
+    } else if (docIdSet instanceof SortedIntDocIdSet) {
+      return (long) ((SortedIntDocIdSet) docIdSet).size() * bytesPerInt;
+    } else if (docIdSet instanceof IntListDocIdSet) {
+      return (long) ((IntListDocIdSet) docIdSet).size() * bytesPerInt;
+    } else if (docIdSet instanceof SortedVIntList) {
+      return ((SortedVIntList) docIdSet).getByteSize();
+    } else if (docIdSet instanceof MultiDocIdSet) {
+      long size = 0;
+      for (DocIdSet set : ((MultiDocIdSet) docIdSet).getSets()) {
+        long setSize = sizeInBytes(set);
+        if (setSize < 0) {
+          return -1;
+        }
+        size += setSize;
+      }
+      return size;
+    } else {
+      return -1;
+    }
+  }
+
+
+  /**
+   * Returns the number of documents in a doc id set, when that can be
+   * known without iterating it.
+   * @param docIdSet the doc id set
+   * @return the number of documents, or -1 if unknown
+   */
+  public static long cost(@Nullable final DocIdSet docIdSet) {
+    if (docIdSet == null || docIdSet == DocIdSet.EMPTY_DOCIDSET) {
+      return 0;
+    } else if (docIdSet instanceof FixedBitSet) {
+      return ((FixedBitSet) docIdSet).cardinality();
+    } else if (docIdSet instanceof OpenBitSet) {
+      return ((OpenBitSet) docIdSet).cardinality();
+    } else if (docIdSet instanceof SortedIntDocIdSet) {
+      return ((SortedIntDocIdSet) docIdSet).size();
+    } else if (docIdSet instanceof IntListDocIdSet) {
+      return ((IntListDocIdSet) docIdSet).size();
+    } else if (docIdSet instanceof SortedVIntList) {
+      return ((SortedVIntList) docIdSet).size();
+    } else if (docIdSet instanceof MultiDocIdSet) {
+      long cost = 0;
+      for (DocIdSet set : ((MultiDocIdSet) docIdSet).getSets()) {
+        long setCost = cost(set);
+        if (setCost < 0) {
+          return -1;
+        }
+        cost += setCost;
+      }
+      return cost;
+    } else {
+      return -1;
+    }
+  }
+
+
   /**
    * Check if the given doc id set contains the given doc id.
    * @param docIdSet the doc id set
@@ -59,6 +59,17 @@ public final class FilterBitsProvider extends BitsProvider {
   }
 
 
+  /**
+   * Returns the filter's doc id set as-is, so that sparse results are
+   * intersected by iterating them rather than copied into a bit set.
+   */
+  @Override
+  public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+    DocIdSet docIdSet = this.filter.getDocIdSet(reader);
+    return docIdSet == null ? DocIdSet.EMPTY_DOCIDSET : docIdSet;
+  }
+
+
   @Override
   public boolean equals(final Object other) {
     if (this == other) {
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.collections.primitives.ArrayIntList;
+import org.apache.commons.collections.primitives.IntList;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of filter results that many ConcurrentCachingWrapperFilters can
+ * share.  It is bounded by the total size of the cached doc id sets rather
+ * than by the lifetime of their segments: once the budget is reached, the
+ * least recently used results are evicted, whichever filter they belong to.
+ * Results of types whose size can't be estimated are re-encoded as a bit
+ * set or sorted int array first, so that every result counts against the
+ * budget.
+ *
+ * Results are keyed on segment core and filter equality, so equal filters
+ * wrapped separately share a single result, and concurrent requests for it
+ * wait for a single load.  Statistics are also kept per filter class.
+ *
+ * Results for a segment are dropped when its core closes, for readers that
+ * report that through a ReaderFinishedListener, or else once its core is
+ * garbage collected.  Core cache keys are only weakly referenced, so
+ * cached results never keep a closed segment's core reachable.
+ */
+public final class FilterCache {
+
+  /**
+   * Estimated bytes an entry uses beyond the contents of its doc id set,
+   * for the key, the cache entry and the set itself.
+   */
+  private static final int ENTRY_OVERHEAD = 64;
+
+
+  /**
+   * The cache from segment and filter to doc id set.
+   */
+  private final Cache<Key, DocIdSet> cache;
+
+
+  /**
+   * The maximum total weight of the cached doc id sets.
+   */
+  private final long maxSizeInBytes;
+
+
+  /**
+   * The current total weight of the cached doc id sets.
+   */
+  private final AtomicLong sizeInBytes = new AtomicLong();
+
+
+  /**
+   * Statistics for each class of filter.
+   */
+  private final ConcurrentMap<Class<?>, Counters> countersByFilterType =
+      Maps.newConcurrentMap();
+
+
+  /**
+   * The segment for each core cache key, which weakly references the keys.
+   * Removing a segment, whether its core closed or was collected, drops
+   * its results.
+   */
+  private final Cache<Object, Segment> segments = CacheBuilder.newBuilder()
+      .weakKeys()
+      .removalListener(new RemovalListener<Object, Segment>() {
+        @Override
+        public void onRemoval(
+            final RemovalNotification<Object, Segment> notification) {
+          purge(notification.getValue());
+        }
+      })
+      .build();
+
+
+  /**
+   * Drops the results for segments whose cores close.
+   */
+  private final IndexReader.ReaderFinishedListener purger =
+      new IndexReader.ReaderFinishedListener() {
+        @Override
+        public void finished(final IndexReader reader) {
+          FilterCache.this.segments.invalidate(reader.getCoreCacheKey());
+        }
+      };
+
+
+  /**
+   * Creates a filter cache.
+   * @param maxSizeInBytes the budget for the estimated total size of the
+   *     cached doc id sets, see {@link DocIdSets#sizeInBytes}
+   */
+  public FilterCache(final long maxSizeInBytes) {
+    if (maxSizeInBytes < 0) {
+      throw new IllegalArgumentException(
+          "maxSizeInBytes must be non-negative");
+    }
+    this.maxSizeInBytes = maxSizeInBytes;
+    this.cache = CacheBuilder.newBuilder()
+        // Guava splits the budget evenly between its segments and evicts
+        // within each one, so a single segment keeps eviction globally LRU
+        // and lets one result use the whole budget.
+        .concurrencyLevel(1)
+        .maximumWeight(maxSizeInBytes)
+        .weigher(new Weigher<Key, DocIdSet>() {
+          @Override
+          public int weigh(final Key key, final DocIdSet value) {
+            return weight(value);
+          }
+        })
+        .removalListener(new RemovalListener<Key, DocIdSet>() {
+          @Override
+          public void onRemoval(
+              final RemovalNotification<Key, DocIdSet> notification) {
+            int weight = weight(notification.getValue());
+            FilterCache.this.sizeInBytes.addAndGet(-weight);
+            Key key = notification.getKey();
+            key.segment.keys.remove(key);
+            Counters counters = counters(key.filter);
+            counters.sizeInBytes.addAndGet(-weight);
+            if (notification.wasEvicted()) {
+              counters.evictions.incrementAndGet();
+            }
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+
+  /**
+   * @param docIdSet a cached doc id set
+   * @return its weight in the cache
+   */
+  private static int weight(final DocIdSet docIdSet) {
+    return (int) Math.min(Integer.MAX_VALUE,
+        ENTRY_OVERHEAD + DocIdSets.sizeInBytes(docIdSet));
+  }
+
+
+  /**
+   * Computes a filter's result in a cacheable form whose size is known.
+   * @param filter the filter
+   * @param reader the reader
+   * @return the result
+   * @throws IOException if IO errors occur while computing the result
+   */
+  private static DocIdSet cacheable(final Filter filter,
+                                    final IndexReader reader)
+      throws IOException {
+    DocIdSet docIdSet = DocIdSets.cacheable(filter.getDocIdSet(reader), reader);
+    if (DocIdSets.sizeInBytes(docIdSet) >= 0) {
+      return docIdSet;
+    }
+
+    DocIdSetIterator it = docIdSet.iterator();
+    if (it == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    IntList docIds = new ArrayIntList();
+    for (int docId = it.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS;
+         docId = it.nextDoc()) {
+      docIds.add(docId);
+    }
+    return DocIdSets.compact(docIds.toArray(), reader.maxDoc());
+  }
+
+
+  /**
+   * Gets the cached result of a filter for a reader, computing it if needed.
+   * @param filter the filter
+   * @param reader the reader, usually a single segment
+   * @return the result, which is cacheable
+   * @throws IOException if IO errors occur while computing the result
+   */
+  public DocIdSet getDocIdSet(final Filter filter, final IndexReader reader)
+      throws IOException {
+    final Counters counters = counters(filter);
+    final Segment segment = segment(reader);
+    final Key key = new Key(segment, filter);
+    final boolean[] loaded = new boolean[1];
+    DocIdSet result;
+    try {
+      result = this.cache.get(key,
+          new Callable<DocIdSet>() {
+            @Override
+            public DocIdSet call() throws IOException {
+              loaded[0] = true;
+              long start = System.nanoTime();
+              DocIdSet docIdSet;
+              try {
+                docIdSet = cacheable(filter, reader);
+              } catch (IOException ex) {
+                counters.loadFailures.incrementAndGet();
+                throw ex;
+              } catch (RuntimeException ex) {
+                counters.loadFailures.incrementAndGet();
+                throw ex;
+              }
+              counters.loadSuccesses.incrementAndGet();
+              counters.totalLoadTime.addAndGet(System.nanoTime() - start);
+
+              int weight = weight(docIdSet);
+              FilterCache.this.sizeInBytes.addAndGet(weight);
+              counters.sizeInBytes.addAndGet(weight);
+              segment.keys.add(key);
+              return docIdSet;
+            }
+          });
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      } else {
+        throw (RuntimeException) ex.getCause();
+      }
+    }
+
+    if (segment.purged) {
+      // The core closed while this result was being computed.
+      this.cache.invalidate(key);
+    }
+
+    // Requests that waited for another thread's load count as hits.
+    if (loaded[0]) {
+      counters.misses.incrementAndGet();
+    } else {
+      counters.hits.incrementAndGet();
+    }
+    return result;
+  }
+
+
+  /**
+   * @param filter a filter
+   * @return the statistics for the filter's class
+   */
+  private Counters counters(final Object filter) {
+    Counters counters = this.countersByFilterType.get(filter.getClass());
+    if (counters == null) {
+      Counters created = new Counters();
+      counters = this.countersByFilterType.putIfAbsent(
+          filter.getClass(), created);
+      if (counters == null) {
+        counters = created;
+      }
+    }
+    return counters;
+  }
+
+
+  /**
+   * Gets the segment for a reader's core, registering to hear when the
+   * core closes the first time it is seen.
+   * @param reader the reader
+   * @return the segment
+   */
+  private Segment segment(final IndexReader reader) {
+    try {
+      return this.segments.get(reader.getCoreCacheKey(),
+          new Callable<Segment>() {
+            @Override
+            public Segment call() {
+              reader.addReaderFinishedListener(FilterCache.this.purger);
+              return new Segment();
+            }
+          });
+    } catch (ExecutionException ex) {
+      throw (RuntimeException) ex.getCause();
+    }
+  }
+
+
+  /**
+   * Drops all results for a segment.
+   * @param segment the segment
+   */
+  private void purge(final Segment segment) {
+    segment.purged = true;
+    for (Key key : segment.keys) {
+      this.cache.invalidate(key);
+    }
+  }
+
+
+  /**
+   * Drops all results.
+   */
+  public void invalidateAll() {
+    this.segments.invalidateAll();
+    this.cache.invalidateAll();
+  }
+
+
+  /**
+   * @return hit, miss, load and eviction counts
+   */
+  public CacheStats stats() {
+    return this.cache.stats();
+  }
+
+
+  /**
+   * @return hit, miss, load and eviction counts for each class of filter
+   */
+  public Map<Class<?>, CacheStats> statsByFilterType() {
+    ImmutableMap.Builder<Class<?>, CacheStats> result = ImmutableMap.builder();
+    for (Map.Entry<Class<?>, Counters> entry
+        : this.countersByFilterType.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return result.build();
+  }
+
+
+  /**
+   * @return the estimated total size of the cached results for each class
+   *     of filter
+   */
+  public Map<Class<?>, Long> sizeInBytesByFilterType() {
+    ImmutableMap.Builder<Class<?>, Long> result = ImmutableMap.builder();
+    for (Map.Entry<Class<?>, Counters> entry
+        : this.countersByFilterType.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sizeInBytes.get());
+    }
+    return result.build();
+  }
+
+
+  /**
+   * @return the number of cached results
+   */
+  public long size() {
+    this.segments.cleanUp();
+    return this.cache.size();
+  }
+
+
+  /**
+   * @return the estimated total size of the cached results
+   */
+  public long sizeInBytes() {
+    this.segments.cleanUp();
+    return this.sizeInBytes.get();
+  }
+
+
+  /**
+   * @return the budget for the estimated total size of the cached results
+   */
+  public long maxSizeInBytes() {
+    return this.maxSizeInBytes;
+  }
+
+
+  @Override
+  public String toString() {
+    return "FilterCache{"
+        + "sizeInBytes=" + sizeInBytes()
+        + ", maxSizeInBytes=" + this.maxSizeInBytes
+        + ", stats=" + stats()
+        + '}';
+  }
+
+
+  /**
+   * A segment core with cached results.  Stands in for the core in cache
+   * keys, which would otherwise keep it reachable.
+   */
+  private static final class Segment {
+
+    /**
+     * The keys of the segment's cached results.
+     */
+    private final Set<Key> keys =
+        Sets.newSetFromMap(Maps.<Key, Boolean>newConcurrentMap());
+
+    /**
+     * Whether the segment's results have been dropped.
+     */
+    private volatile boolean purged;
+
+  }
+
+
+  /**
+   * Cache key: a segment and a filter.
+   */
+  private static final class Key {
+
+    /**
+     * The segment.
+     */
+    private final Segment segment;
+
+    /**
+     * The filter.
+     */
+    private final Filter filter;
+
+
+    /**
+     * Creates a cache key.
+     * @param segment the segment
+     * @param filter the filter
+     */
+    private Key(final Segment segment, final Filter filter) {
+      this.segment = segment;
+      this.filter = filter;
+    }
+
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      Key that = (Key) o;
+      return this.segment == that.segment
+          && this.filter.equals(that.filter);
+    }
+
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(this.segment)
+          + this.filter.hashCode();
+    }
+
+  }
+
+
+  /**
+   * Statistics for one class of filter.
+   */
+  private static final class Counters {
+
+    /**
+     * Requests served from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Requests that computed their result.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Results computed successfully.
+     */
+    private final AtomicLong loadSuccesses = new AtomicLong();
+
+    /**
+     * Results that failed to compute.
+     */
+    private final AtomicLong loadFailures = new AtomicLong();
+
+    /**
+     * Nanoseconds spent computing results.
+     */
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    /**
+     * Results evicted over budget.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Estimated total size of the cached results.
+     */
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+
+    /**
+     * @return a snapshot of the counts
+     */
+    private CacheStats snapshot() {
+      return new CacheStats(
+          this.hits.get(),
+          this.misses.get(),
+          this.loadSuccesses.get(),
+          this.loadFailures.get(),
+          this.totalLoadTime.get(),
+          this.evictions.get());
+    }
+
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Filter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Precomputes registered caching filters, such as
+ * ConcurrentCachingWrapperFilters, for the new segments of a reopened
+ * reader on a background executor, so the first queries after a refresh
+ * don't pay for it.
+ *
+ * Warming a filter just calls its getDocIdSet for each new segment, which
+ * a caching filter turns into a cache entry.  Queries that arrive while a
+ * segment is being warmed wait for that single computation rather than
+ * repeating it, and queries for segments the warmer hasn't reached yet
+ * compute their result inline as usual.
+ */
+public final class FilterWarmer {
+
+  /**
+   * The executor to warm on.
+   */
+  private final ListeningExecutorService executor;
+
+
+  /**
+   * The filters to warm.
+   */
+  private final Set<Filter> filters = Sets.newCopyOnWriteArraySet();
+
+
+  /**
+   * For each segment core, the filters already warmed for it.
+   */
+  private final LoadingCache<Object, Set<Filter>> warmed =
+      CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<Object, Set<Filter>>() {
+            @Override
+            public Set<Filter> load(final Object key) {
+              return Sets.newSetFromMap(
+                  Maps.<Filter, Boolean>newConcurrentMap());
+            }
+          });
+
+
+  /**
+   * Creates a filter warmer.
+   * @param executor the executor to warm on
+   */
+  public FilterWarmer(final ExecutorService executor) {
+    this.executor = MoreExecutors.listeningDecorator(executor);
+  }
+
+
+  /**
+   * Registers a filter to warm for new segments.
+   * @param filter the filter, which should cache its results
+   */
+  public void register(final Filter filter) {
+    this.filters.add(filter);
+  }
+
+
+  /**
+   * Stops warming a filter.
+   * @param filter the filter
+   */
+  public void unregister(final Filter filter) {
+    this.filters.remove(filter);
+  }
+
+
+  /**
+   * Warms the registered filters for every segment of the reader that they
+   * haven't been warmed for yet.  The reader must stay open until warming
+   * completes.
+   * @param reader the newly opened reader
+   * @return a future that completes once every segment is warmed, or fails
+   *     with the first error, including the executor rejecting the work
+   */
+  public ListenableFuture<?> warm(final IndexReader reader) {
+    List<ListenableFuture<?>> futures = Lists.newArrayList();
+    for (final IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      final Set<Filter> warmedFilters =
+          this.warmed.getUnchecked(subReader.getCoreCacheKey());
+      for (final Filter filter : this.filters) {
+        if (!warmedFilters.add(filter)) {
+          continue;
+        }
+        try {
+          futures.add(this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              boolean success = false;
+              try {
+                filter.getDocIdSet(subReader);
+                success = true;
+              } finally {
+                if (!success) {
+                  // Let a later warm() retry it.
+                  warmedFilters.remove(filter);
+                }
+              }
+              return null;
+            }
+          }));
+        } catch (RejectedExecutionException ex) {
+          // Likewise when the executor is shut down or saturated.
+          warmedFilters.remove(filter);
+          futures.add(Futures.immediateFailedFuture(ex));
+        }
+      }
+    }
+    return Futures.allAsList(futures);
+  }
+
+}
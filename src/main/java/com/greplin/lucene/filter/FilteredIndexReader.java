@@ -4,7 +4,11 @@
 
 package com.greplin.lucene.filter;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.greplin.lucene.predicate.BitsProvider;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.FilterIndexReader;
 import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexReader;
@@ -12,22 +16,46 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.FixedBitSet;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Creates an index reader that only allows documents matched by
  * the specified filter through.
  *
- * Some parts of the API will return inaccurate information - the
- * term frequencies, document count in the presence of deletions,
- * etc.  Practical experience thus far shows this only affects
- * accuracy of scoring.
+ * Document counts and live documents account for both filtered out and
+ * deleted documents, but term statistics such as document frequencies
+ * still describe the underlying reader.  Practical experience thus far
+ * shows this only affects accuracy of scoring.
  */
 public abstract class FilteredIndexReader
     extends FilterIndexReader
     implements Cloneable {
 
+  /**
+   * Deletes cache keys, by filtered core cache key and then by underlying
+   * deletes cache key.  Each key lives as long as both of the keys it was
+   * made from, and is the same object for every reader that shares them.
+   */
+  private static final LoadingCache<Object, LoadingCache<Object, Object>>
+      DELETES_KEYS = CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<Object, LoadingCache<Object, Object>>() {
+            @Override
+            public LoadingCache<Object, Object> load(final Object key) {
+              return CacheBuilder.newBuilder().weakKeys().build(
+                  new CacheLoader<Object, Object>() {
+                    @Override
+                    public Object load(final Object key) {
+                      return new Object();
+                    }
+                  });
+            }
+          });
+
+
   /**
    * Provider of bits.
    */
@@ -46,6 +74,19 @@ public abstract class FilteredIndexReader
   private final CacheKeyProvider cacheKeyProvider;
 
 
+  /**
+   * Whether bits are computed on first use rather than up front.
+   */
+  private final boolean lazy;
+
+
+  /**
+   * Incremented whenever cached documents are cleared, so a computation
+   * that overlapped a deletion can tell not to publish its stale result.
+   */
+  private final AtomicInteger generation = new AtomicInteger();
+
+
   /**
    * Wraps the given index reader with the appropriate filtered reader type.
    * @param reader the index reader.
@@ -71,10 +112,60 @@ public abstract class FilteredIndexReader
       final IndexReader reader,
       final BitsProvider bitsProvider,
       final CacheKeyProvider cacheKeyProvider) {
+    return wrap(reader, bitsProvider, cacheKeyProvider, false);
+  }
+
+
+  /**
+   * Wraps the given index reader with the appropriate filtered reader type,
+   * computing each segment's bits on first use rather than up front.
+   * @param reader the index reader.
+   * @param bitsProvider provider of filter bits.
+   * @return an index reader filtered by the given bits.
+   */
+  public static FilteredIndexReader wrapLazily(
+      final IndexReader reader,
+      final BitsProvider bitsProvider) {
+    return wrapLazily(
+        reader, bitsProvider, new FilteredCacheKeyProvider(bitsProvider));
+  }
+
+
+  /**
+   * Wraps the given index reader with the appropriate filtered reader type,
+   * computing each segment's bits on first use rather than up front.
+   * @param reader the index reader.
+   * @param bitsProvider provider of filter bits.
+   * @return an index reader filtered by the given bits.
+   * @param cacheKeyProvider provider of cache keys.
+   */
+  public static FilteredIndexReader wrapLazily(
+      final IndexReader reader,
+      final BitsProvider bitsProvider,
+      final CacheKeyProvider cacheKeyProvider) {
+    return wrap(reader, bitsProvider, cacheKeyProvider, true);
+  }
+
+
+  /**
+   * Wraps the given index reader with the appropriate filtered reader type.
+   * @param reader the index reader.
+   * @param bitsProvider provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute bits on first use
+   * @return an index reader filtered by the given bits.
+   */
+  static FilteredIndexReader wrap(
+      final IndexReader reader,
+      final BitsProvider bitsProvider,
+      final CacheKeyProvider cacheKeyProvider,
+      final boolean lazy) {
     if (reader.getSequentialSubReaders() == null) {
-      return new FilteredSegmentReader(reader, bitsProvider, cacheKeyProvider);
+      return new FilteredSegmentReader(
+          reader, bitsProvider, cacheKeyProvider, lazy);
     } else {
-      return new FilteredMultiReader(reader, bitsProvider, cacheKeyProvider);
+      return new FilteredMultiReader(
+          reader, bitsProvider, cacheKeyProvider, lazy);
     }
   }
 
@@ -88,10 +179,26 @@ public abstract class FilteredIndexReader
   protected FilteredIndexReader(final IndexReader base,
                                 final BitsProvider bitsProvider,
                                 final CacheKeyProvider cacheKeyProvider) {
+    this(base, bitsProvider, cacheKeyProvider, false);
+  }
+
+
+  /**
+   * Creates a filtered index reader with the given bits provider.
+   * @param base the underlying reader.
+   * @param bitsProvider the provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute bits on first use.
+   */
+  protected FilteredIndexReader(final IndexReader base,
+                                final BitsProvider bitsProvider,
+                                final CacheKeyProvider cacheKeyProvider,
+                                final boolean lazy) {
     super(base);
     this.bitsProvider = bitsProvider;
     this.cacheKeyProvider = cacheKeyProvider;
     this.cacheKey = cacheKeyProvider.getCoreCacheKey(base);
+    this.lazy = lazy;
   }
 
 
@@ -103,28 +210,51 @@ public abstract class FilteredIndexReader
   protected abstract IndexReader wrap(final IndexReader target);
 
 
+  /**
+   * Wraps a reopened version of the underlying reader in filtering logic,
+   * reusing whatever bits are still valid.
+   * @param reopened the reopened underlying reader
+   * @return the wrapped index reader
+   */
+  protected abstract IndexReader wrapReopened(final IndexReader reopened);
+
+
+  /**
+   * Wraps the result of reopening the underlying reader.
+   * @param reopened the reopened underlying reader, or null if unchanged
+   * @return the wrapped index reader, or null if unchanged
+   */
+  private IndexReader wrapIfChanged(@Nullable final IndexReader reopened) {
+    return reopened == null ? null : wrapReopened(reopened);
+  }
+
+
   @Override
-  public IndexReader reopen() throws IOException {
-    return wrap(super.reopen());
+  protected IndexReader doOpenIfChanged() throws IOException {
+    return wrapIfChanged(IndexReader.openIfChanged(this.in));
   }
 
 
   @Override
-  public IndexReader reopen(final boolean openReadOnly) throws IOException {
-    return wrap(super.reopen(openReadOnly));
+  protected IndexReader doOpenIfChanged(final boolean openReadOnly)
+      throws IOException {
+    return wrapIfChanged(IndexReader.openIfChanged(this.in, openReadOnly));
   }
 
 
   @Override
-  public IndexReader reopen(final IndexCommit commit) throws IOException {
-    return wrap(super.reopen(commit));
+  protected IndexReader doOpenIfChanged(final IndexCommit commit)
+      throws IOException {
+    return wrapIfChanged(IndexReader.openIfChanged(this.in, commit));
   }
 
 
   @Override
-  public IndexReader reopen(final IndexWriter writer,
-                            final boolean applyAllDeletes) throws IOException {
-    return wrap(super.reopen(writer, applyAllDeletes));
+  protected IndexReader doOpenIfChanged(final IndexWriter writer,
+                                        final boolean applyAllDeletes)
+      throws IOException {
+    return wrapIfChanged(
+        IndexReader.openIfChanged(this.in, writer, applyAllDeletes));
   }
 
 
@@ -144,6 +274,44 @@ public abstract class FilteredIndexReader
   public abstract boolean isDeleted(final int n);
 
 
+  @Override
+  protected void doDelete(final int n)
+      throws CorruptIndexException, IOException {
+    super.doDelete(n);
+    clearCachedDocs();
+  }
+
+
+  @Override
+  protected void doUndeleteAll() throws CorruptIndexException, IOException {
+    super.doUndeleteAll();
+    clearCachedDocs();
+  }
+
+
+  /**
+   * Forgets everything computed from the underlying reader's deletions,
+   * after documents are deleted or undeleted through this reader.
+   * Subclasses that cache counts or live documents must clear them too,
+   * holding the same lock they publish them under.
+   */
+  protected void clearCachedDocs() {
+    this.generation.incrementAndGet();
+    LiveDocs.invalidate(this);
+    LiveDocs.invalidate(this.in);
+  }
+
+
+  /**
+   * @return the number of times cached documents have been cleared.  A
+   *     result computed from the documents should only be cached if this
+   *     is unchanged between starting the computation and publishing it.
+   */
+  protected int getGeneration() {
+    return this.generation.get();
+  }
+
+
   @Override
   public boolean hasDeletions() {
     return true;
@@ -154,6 +322,16 @@ public abstract class FilteredIndexReader
   public abstract int numDocs();
 
 
+  /**
+   * Returns the documents that are neither deleted nor filtered out, as a
+   * single bit set, so callers checking many documents can avoid going
+   * through {@link #isDeleted(int)} for each one.  Computed on first use.
+   * @return the live documents
+   * @throws IOException if IO errors occur
+   */
+  public abstract FixedBitSet getLiveDocs() throws IOException;
+
+
   @Override
   public abstract TermDocs termDocs(final Term term) throws IOException;
 
@@ -198,6 +376,23 @@ public abstract class FilteredIndexReader
   }
 
 
+  /**
+   * Filtered out documents count as deleted, so the underlying reader's
+   * deletes cache key alone would mix up the live documents of different
+   * filtered views of the same segment, and of the segment itself.
+   */
+  @Override
+  public Object getDeletesCacheKey() {
+    Object underlyingKey = this.in.getDeletesCacheKey();
+    if (underlyingKey == null) {
+      // No underlying deletions, so only the filter matters.
+      return this.cacheKey;
+    }
+    return DELETES_KEYS.getUnchecked(this.cacheKey)
+        .getUnchecked(underlyingKey);
+  }
+
+
   @Override
   public IndexCommit getIndexCommit() throws IOException {
     return this.in.getIndexCommit();
@@ -211,4 +406,12 @@ public abstract class FilteredIndexReader
     return this.bitsProvider;
   }
 
+
+  /**
+   * @return whether bits are computed on first use rather than up front.
+   */
+  protected boolean isLazy() {
+    return this.lazy;
+  }
+
 }
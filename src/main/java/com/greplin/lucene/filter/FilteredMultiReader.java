@@ -4,6 +4,7 @@
 
 package com.greplin.lucene.filter;
 
+import com.google.common.collect.Maps;
 import com.greplin.lucene.predicate.BitsProvider;
 import org.apache.lucene.index.HackMultiTermDocs;
 import org.apache.lucene.index.HackMultiTermPositions;
@@ -11,8 +12,12 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ReaderUtil;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Filtered reader that has child readers.
@@ -40,7 +45,42 @@ public class FilteredMultiReader extends FilteredIndexReader {
   public FilteredMultiReader(final IndexReader base,
                              final BitsProvider bitsProvider,
                              final CacheKeyProvider cacheKeyProvider) {
-    super(base, bitsProvider, cacheKeyProvider);
+    this(base, bitsProvider, cacheKeyProvider, false);
+  }
+
+
+  /**
+   * Creates a filtered index reader with the given bits provider.
+   * @param base         the underlying reader.
+   * @param bitsProvider the provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute each segment's bits on first use.
+   */
+  public FilteredMultiReader(final IndexReader base,
+                             final BitsProvider bitsProvider,
+                             final CacheKeyProvider cacheKeyProvider,
+                             final boolean lazy) {
+    this(base, bitsProvider, cacheKeyProvider, lazy,
+        Collections.<Object, FilteredSegmentReader>emptyMap());
+  }
+
+
+  /**
+   * Creates a filtered index reader with the given bits provider, reusing
+   * the bits of previous segment readers whose cores are unchanged.
+   * @param base         the underlying reader.
+   * @param bitsProvider the provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute each segment's bits on first use.
+   * @param previous previous segment readers by underlying core cache key.
+   */
+  private FilteredMultiReader(
+      final IndexReader base,
+      final BitsProvider bitsProvider,
+      final CacheKeyProvider cacheKeyProvider,
+      final boolean lazy,
+      final Map<Object, FilteredSegmentReader> previous) {
+    super(base, bitsProvider, cacheKeyProvider, lazy);
 
     this.subReaders = new FilteredIndexReader[
         base.getSequentialSubReaders().length];
@@ -51,8 +91,12 @@ public class FilteredMultiReader extends FilteredIndexReader {
     int maxDoc = 0;
     for (IndexReader reader : base.getSequentialSubReaders()) {
       this.starts[pos] = maxDoc;
-      this.subReaders[pos] = FilteredIndexReader.wrap(
-          reader, bitsProvider, cacheKeyProvider);
+      FilteredSegmentReader previousReader =
+          previous.get(reader.getCoreCacheKey());
+      this.subReaders[pos] = previousReader != null
+          ? previousReader.reuseFor(reader)
+          : FilteredIndexReader.wrap(
+              reader, bitsProvider, cacheKeyProvider, lazy);
       maxDoc += this.subReaders[pos].maxDoc();
       pos++;
     }
@@ -64,30 +108,111 @@ public class FilteredMultiReader extends FilteredIndexReader {
   @Override
   protected IndexReader wrap(final IndexReader target) {
     return new FilteredMultiReader(
-        target, this.getBitsProvider(), this.getCacheKeyProvider());
+        target, this.getBitsProvider(), this.getCacheKeyProvider(),
+        isLazy());
+  }
+
+
+  /**
+   * Reopening only computes bits for new segments.  Segments whose cores
+   * are unchanged - including those that just have new deletions - keep
+   * the bits computed for them by this reader.
+   */
+  @Override
+  protected IndexReader wrapReopened(final IndexReader reopened) {
+    if (reopened.getSequentialSubReaders() == null) {
+      return FilteredIndexReader.wrap(reopened, this.getBitsProvider(),
+          this.getCacheKeyProvider(), isLazy());
+    }
+
+    Map<Object, FilteredSegmentReader> previous = Maps.newHashMap();
+    for (FilteredIndexReader reader : this.subReaders) {
+      if (reader instanceof FilteredSegmentReader) {
+        previous.put(reader.getUnderlyingReader().getCoreCacheKey(),
+            (FilteredSegmentReader) reader);
+      }
+    }
+    return new FilteredMultiReader(reopened, this.getBitsProvider(),
+        this.getCacheKeyProvider(), isLazy(), previous);
   }
 
 
   @Override
   public boolean isDeleted(final int n) {
-    int offset = 0;
-    for (IndexReader reader : this.subReaders) {
-      if (n < offset + reader.maxDoc()) {
-        return reader.isDeleted(n - offset);
+    if (n < 0 || n >= this.starts[this.subReaders.length]) {
+      throw new IllegalArgumentException("docId out of bounds!");
+    }
+    int i = ReaderUtil.subIndex(n, this.starts);
+    return this.subReaders[i].isDeleted(n - this.starts[i]);
+  }
+
+
+  /**
+   * The combined live documents, or null until first requested.
+   */
+  private volatile FixedBitSet liveDocs;
+
+
+  @Override
+  public FixedBitSet getLiveDocs() throws IOException {
+    FixedBitSet result = this.liveDocs;
+    if (result == null) {
+      int generation = getGeneration();
+      result = new FixedBitSet(this.starts[this.subReaders.length]);
+      for (int i = 0; i < this.subReaders.length; i++) {
+        FixedBitSet subLiveDocs = this.subReaders[i].getLiveDocs();
+        int start = this.starts[i];
+        int length = subLiveDocs.length();
+        for (int doc = length == 0 ? -1 : subLiveDocs.nextSetBit(0);
+             doc != -1;
+             doc = doc + 1 < length ? subLiveDocs.nextSetBit(doc + 1) : -1) {
+          result.set(start + doc);
+        }
+      }
+      synchronized (this) {
+        if (generation == getGeneration()) {
+          this.liveDocs = result;
+        }
       }
-      offset += reader.maxDoc();
     }
-    throw new IllegalArgumentException("docId out of bounds!");
+    return result;
   }
 
 
+  /**
+   * Number of documents that are neither deleted nor filtered out, or -1
+   * until it is first computed.
+   */
+  private volatile int numDocs = -1;
+
+
   @Override
   public int numDocs() {
-    int sum = 0;
-    for (IndexReader reader : this.subReaders) {
-      sum += reader.numDocs();
+    int result = this.numDocs;
+    if (result == -1) {
+      int generation = getGeneration();
+      result = 0;
+      for (IndexReader reader : this.subReaders) {
+        result += reader.numDocs();
+      }
+      synchronized (this) {
+        if (generation == getGeneration()) {
+          this.numDocs = result;
+        }
+      }
+    }
+    return result;
+  }
+
+
+  @Override
+  protected synchronized void clearCachedDocs() {
+    super.clearCachedDocs();
+    for (FilteredIndexReader reader : this.subReaders) {
+      reader.clearCachedDocs();
     }
-    return sum;
+    this.numDocs = -1;
+    this.liveDocs = null;
   }
 
 
@@ -9,10 +9,12 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.BitUtil;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.OpenBitSet;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 
 /**
@@ -22,9 +24,9 @@ import java.io.IOException;
 public class FilteredSegmentReader extends FilteredIndexReader {
 
   /**
-   * Set of valid documents.
+   * Set of valid documents, or null until first used in lazy mode.
    */
-  private final Bits bits;
+  private volatile Bits bits;
 
 
   /**
@@ -36,11 +38,49 @@ public class FilteredSegmentReader extends FilteredIndexReader {
   public FilteredSegmentReader(final IndexReader base,
                                final BitsProvider bitsProvider,
                                final CacheKeyProvider cacheKeyProvider) {
-    super(base, bitsProvider, cacheKeyProvider);
-    try {
-      this.bits = bitsProvider.get(base);
-    } catch (IOException ex) {
-      throw new RuntimeException("Exception while creating filter bits", ex);
+    this(base, bitsProvider, cacheKeyProvider, false);
+  }
+
+
+  /**
+   * Creates a filtered index reader with the given bits provider.  In lazy
+   * mode the bits are computed the first time they are needed, so segments
+   * that are never searched cost nothing.
+   * @param base the underlying reader.
+   * @param bitsProvider the provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute the bits on first use.
+   */
+  public FilteredSegmentReader(final IndexReader base,
+                               final BitsProvider bitsProvider,
+                               final CacheKeyProvider cacheKeyProvider,
+                               final boolean lazy) {
+    this(base, bitsProvider, cacheKeyProvider, lazy, null);
+  }
+
+
+  /**
+   * Creates a filtered index reader that uses bits that were already
+   * computed for the same segment core, if any.
+   * @param base the underlying reader.
+   * @param bitsProvider the provider of filter bits.
+   * @param cacheKeyProvider provider of cache keys.
+   * @param lazy whether to compute the bits on first use.
+   * @param bits previously computed bits, or null.
+   */
+  private FilteredSegmentReader(final IndexReader base,
+                                final BitsProvider bitsProvider,
+                                final CacheKeyProvider cacheKeyProvider,
+                                final boolean lazy,
+                                @Nullable final Bits bits) {
+    super(base, bitsProvider, cacheKeyProvider, lazy);
+    this.bits = bits;
+    if (bits == null && !lazy) {
+      try {
+        this.bits = bitsProvider.get(base);
+      } catch (IOException ex) {
+        throw new RuntimeException("Exception while creating filter bits", ex);
+      }
     }
   }
 
@@ -52,13 +92,73 @@ public class FilteredSegmentReader extends FilteredIndexReader {
    */
   protected IndexReader wrap(final IndexReader target) {
     return new FilteredSegmentReader(
-        target, this.getBitsProvider(), this.getCacheKeyProvider());
+        target, this.getBitsProvider(), this.getCacheKeyProvider(),
+        isLazy());
+  }
+
+
+  @Override
+  protected IndexReader wrapReopened(final IndexReader reopened) {
+    return reuseFor(reopened);
+  }
+
+
+  /**
+   * Wraps another reader with the same filtering logic.  Bits are only
+   * looked up by document, and deletions are checked separately, so if the
+   * reader shares this reader's segment core any bits computed so far are
+   * reused as is.
+   * @param target the reader to wrap
+   * @return the wrapped reader
+   */
+  FilteredIndexReader reuseFor(final IndexReader target) {
+    if (target.getCoreCacheKey() == getUnderlyingReader().getCoreCacheKey()) {
+      return new FilteredSegmentReader(
+          target, this.getBitsProvider(), this.getCacheKeyProvider(),
+          isLazy(), this.bits);
+    }
+    return FilteredIndexReader.wrap(
+        target, this.getBitsProvider(), this.getCacheKeyProvider(), isLazy());
+  }
+
+
+  /**
+   * Gets the set of valid documents, computing it if necessary.
+   * @return the set of valid documents
+   * @throws IOException if IO errors occur while computing the bits
+   */
+  private Bits getBits() throws IOException {
+    Bits result = this.bits;
+    if (result == null) {
+      synchronized (this) {
+        result = this.bits;
+        if (result == null) {
+          result = getBitsProvider().get(getUnderlyingReader());
+          this.bits = result;
+        }
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * Gets the set of valid documents from a method that can't throw
+   * IOException.
+   * @return the set of valid documents
+   */
+  private Bits getBitsUnchecked() {
+    try {
+      return getBits();
+    } catch (IOException ex) {
+      throw new RuntimeException("Exception while creating filter bits", ex);
+    }
   }
 
 
   @Override
   public boolean isDeleted(final int n) {
-    return getUnderlyingReader().isDeleted(n) || !this.bits.get(n);
+    return getUnderlyingReader().isDeleted(n) || !getBitsUnchecked().get(n);
   }
 
 
@@ -68,66 +168,209 @@ public class FilteredSegmentReader extends FilteredIndexReader {
   }
 
 
+  /**
+   * Number of documents that are neither deleted nor filtered out, or -1
+   * until it is first computed.  Computing it more than once in a race is
+   * harmless, as long as a count that overlapped a deletion is not kept.
+   */
+  private volatile int numDocs = -1;
+
+
   @Override
   public int numDocs() {
-    if (this.bits instanceof FixedBitSet) {
-      return ((FixedBitSet) this.bits).cardinality();
-    } else if (this.bits instanceof OpenBitSet) {
-      return (int) ((OpenBitSet) this.bits).cardinality();
-    } else {
-      int count = 0;
-      for (int i = 0; i < this.bits.length(); i++) {
-        if (this.bits.get(i)) {
-          count++;
+    int result = this.numDocs;
+    if (result == -1) {
+      int generation = getGeneration();
+      try {
+        result = countLiveDocs();
+      } catch (IOException ex) {
+        throw new RuntimeException("Exception while counting documents", ex);
+      }
+      synchronized (this) {
+        if (generation == getGeneration()) {
+          this.numDocs = result;
+        }
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * The combined live documents, or null until first requested.
+   */
+  private volatile FixedBitSet liveDocs;
+
+
+  @Override
+  public FixedBitSet getLiveDocs() throws IOException {
+    FixedBitSet result = this.liveDocs;
+    if (result == null) {
+      int generation = getGeneration();
+      Bits allowed = getBits();
+      int maxDoc = maxDoc();
+      if (allowed instanceof FixedBitSet
+          && ((FixedBitSet) allowed).length() == maxDoc) {
+        result = new FixedBitSet((FixedBitSet) allowed);
+      } else {
+        result = new FixedBitSet(maxDoc);
+        for (int i = 0; i < maxDoc; i++) {
+          if (allowed.get(i)) {
+            result.set(i);
+          }
+        }
+      }
+
+      FixedBitSet underlyingLiveDocs = LiveDocs.get(getUnderlyingReader());
+      if (underlyingLiveDocs != null) {
+        result.and(underlyingLiveDocs);
+      }
+      synchronized (this) {
+        if (generation == getGeneration()) {
+          this.liveDocs = result;
         }
       }
-      return count;
     }
+    return result;
+  }
+
+
+  @Override
+  protected synchronized void clearCachedDocs() {
+    super.clearCachedDocs();
+    this.numDocs = -1;
+    this.liveDocs = null;
+  }
+
+
+  /**
+   * Counts the documents that are live in the underlying reader and allowed
+   * by the bits, a word at a time when the bits are a bit set.
+   * @return the number of documents
+   * @throws IOException if IO errors occur
+   */
+  private int countLiveDocs() throws IOException {
+    IndexReader underlying = getUnderlyingReader();
+    FixedBitSet liveDocs = LiveDocs.get(underlying);
+    Bits allowed = getBits();
+
+    long[] words = null;
+    int numWords = 0;
+    if (allowed instanceof FixedBitSet) {
+      words = ((FixedBitSet) allowed).getBits();
+      numWords = words.length;
+    } else if (allowed instanceof OpenBitSet) {
+      words = ((OpenBitSet) allowed).getBits();
+      numWords = ((OpenBitSet) allowed).getNumWords();
+    }
+
+    if (words != null) {
+      if (liveDocs == null) {
+        return (int) BitUtil.pop_array(words, 0, numWords);
+      }
+      long[] liveWords = liveDocs.getBits();
+      return (int) BitUtil.pop_intersect(
+          words, liveWords, 0, Math.min(numWords, liveWords.length));
+    }
+
+    // Predicate bits may not know their length, so go by maxDoc.
+    int count = 0;
+    for (int i = 0; i < underlying.maxDoc(); i++) {
+      if ((liveDocs == null || liveDocs.get(i)) && allowed.get(i)) {
+        count++;
+      }
+    }
+    return count;
   }
 
 
   /**
-   * TermDocs that are filtered by the set of valid bits.
+   * TermDocs that are filtered by the set of valid bits.  When the bits are
+   * a FixedBitSet, runs of filtered out documents are skipped a word at a
+   * time instead of a posting at a time.
    */
   private class FilteredTermDocs extends FilterTermDocs implements TermDocs {
 
+    /**
+     * The set of valid documents.
+     */
+    private final Bits bits;
+
+
+    /**
+     * The set of valid documents if it supports word-level scanning,
+     * otherwise null.
+     */
+    @Nullable
+    private final FixedBitSet fixedBits;
+
+
     /**
      * TermDocs that are filtered by the set of valid bits.
      * @param termDocs the underlying term docs.
+     * @throws IOException if IO errors occur while computing the bits.
      */
-    protected FilteredTermDocs(final TermDocs termDocs) {
+    protected FilteredTermDocs(final TermDocs termDocs) throws IOException {
       super(termDocs);
+      this.bits = getBits();
+      this.fixedBits = this.bits instanceof FixedBitSet
+          ? (FixedBitSet) this.bits : null;
     }
 
+
     @Override
     public boolean next() throws IOException {
+      if (this.fixedBits != null) {
+        return super.next() && skipToValid();
+      }
       while (super.next()) {
-        if (FilteredSegmentReader.this.bits.get(super.doc())) {
+        if (this.bits.get(super.doc())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+
+    /**
+     * Starting at the current document, skips the underlying term docs to
+     * the next valid document.  Only used with FixedBitSet bits.
+     * @return whether a valid document was found
+     * @throws IOException if IO errors occur
+     */
+    private boolean skipToValid() throws IOException {
+      int doc = super.doc();
+      while (doc < this.fixedBits.length()) {
+        int valid = this.fixedBits.nextSetBit(doc);
+        if (valid == doc) {
           return true;
+        } else if (valid == -1 || !super.skipTo(valid)) {
+          return false;
         }
+        doc = super.doc();
       }
       return false;
     }
 
 
+    /**
+     * Reads directly into the given arrays and compacts them in place, so
+     * no buffers are allocated.  May return fewer entries than fit, but
+     * only returns zero once the underlying term docs are exhausted.
+     */
     @Override
     public int read(final int[] docs, final int[] freqs) throws IOException {
       int read = 0;
-
-      int[] freqTemp = new int[freqs.length];
-
-      while (read < docs.length) {
-        int[] docTemp = new int[docs.length - read];
-
-        int got = super.read(docTemp, freqTemp);
+      while (read == 0) {
+        int got = super.read(docs, freqs);
         if (got == 0) {
           break;
         }
 
         for (int i = 0; i < got; i++) {
-          if (FilteredSegmentReader.this.bits.get(docTemp[i])) {
-            docs[read] = docTemp[i];
-            freqs[read] = freqTemp[i];
+          if (this.bits.get(docs[i])) {
+            docs[read] = docs[i];
+            freqs[read] = freqs[i];
             read++;
           }
         }
@@ -139,8 +382,13 @@ public class FilteredSegmentReader extends FilteredIndexReader {
 
     @Override
     public boolean skipTo(final int target) throws IOException {
-      return super.skipTo(target)
-          && (FilteredSegmentReader.this.bits.get(super.doc()) || next());
+      if (!super.skipTo(target)) {
+        return false;
+      } else if (this.fixedBits != null) {
+        return skipToValid();
+      } else {
+        return this.bits.get(super.doc()) || next();
+      }
     }
   }
 
@@ -172,8 +420,10 @@ public class FilteredSegmentReader extends FilteredIndexReader {
     /**
      * TermPositions that are filtered by the set of valid bits.
      * @param forward the underlying term positions.
+     * @throws IOException if IO errors occur while computing the bits.
      */
-    private FilteredTermPositions(final TermPositions forward) {
+    private FilteredTermPositions(final TermPositions forward)
+        throws IOException {
       super(forward);
       this.forward = forward;
     }
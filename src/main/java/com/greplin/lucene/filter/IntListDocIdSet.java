@@ -30,6 +30,14 @@ public class IntListDocIdSet extends DocIdSet {
   }
 
 
+  /**
+   * @return the number of documents in the set
+   */
+  public int size() {
+    return this.intList.size();
+  }
+
+
   @Override
   public DocIdSetIterator iterator() throws IOException {
     return this.intList.size() == 0
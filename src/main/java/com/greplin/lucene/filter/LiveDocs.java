@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.FixedBitSet;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bit sets of the live (non-deleted) documents in a reader, built once per
+ * deletion generation and shared by everything that masks cached results.
+ *
+ * Generations are identified by {@link IndexReader#getDeletesCacheKey()},
+ * so readers that delete documents in place (as opposed to reopening) may
+ * see a stale mask, unless they delete through a FilteredIndexReader.
+ */
+public final class LiveDocs {
+
+  /** Not instantiable. */
+  private LiveDocs() { }
+
+
+  /**
+   * Live documents keyed by the deletes cache key they were built from.
+   */
+  private static final Cache<Object, FixedBitSet> CACHE =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+
+  /**
+   * Returns the live documents of the given reader.
+   * @param reader the reader
+   * @return the live documents, or null if the reader has no deletions
+   * @throws IOException if IO errors occur
+   */
+  @Nullable
+  public static FixedBitSet get(final IndexReader reader) throws IOException {
+    if (!reader.hasDeletions()) {
+      return null;
+    }
+    Object key = reader.getDeletesCacheKey();
+    if (key == null) {
+      return build(reader);
+    }
+    try {
+      return CACHE.get(key, new Callable<FixedBitSet>() {
+        @Override
+        public FixedBitSet call() {
+          return build(reader);
+        }
+      });
+    } catch (ExecutionException ex) {
+      throw (RuntimeException) ex.getCause();
+    }
+  }
+
+
+  /**
+   * Forgets the live documents of the given reader, after documents were
+   * deleted from it in place.
+   * @param reader the reader
+   */
+  static void invalidate(final IndexReader reader) {
+    Object key = reader.getDeletesCacheKey();
+    if (key != null) {
+      CACHE.invalidate(key);
+    }
+  }
+
+
+  /**
+   * Builds the live documents of the given reader.
+   * @param reader the reader
+   * @return the live documents
+   */
+  private static FixedBitSet build(final IndexReader reader) {
+    int maxDoc = reader.maxDoc();
+    FixedBitSet result = new FixedBitSet(maxDoc);
+    result.set(0, maxDoc);
+    for (int i = 0; i < maxDoc; i++) {
+      if (reader.isDeleted(i)) {
+        result.clear(i);
+      }
+    }
+    return result;
+  }
+
+}
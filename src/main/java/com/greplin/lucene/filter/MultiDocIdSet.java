@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+
+/**
+ * Like a MultiReader for DocIdSets: concatenates per-segment doc id sets,
+ * each in whatever encoding suits its segment.
+ */
+public class MultiDocIdSet extends DocIdSet {
+
+  /**
+   * The per-segment doc id sets.
+   */
+  private final DocIdSet[] sets;
+
+  /**
+   * The first doc id of each segment, followed by the total maxDoc.
+   */
+  private final int[] starts;
+
+
+  /**
+   * Constructs a multi-part doc id set.
+   * @param sets the per-segment doc id sets
+   * @param starts the first doc id of each segment, followed by the total
+   *     maxDoc, so one longer than sets
+   */
+  public MultiDocIdSet(final DocIdSet[] sets, final int[] starts) {
+    assert starts.length == sets.length + 1;
+    this.sets = sets;
+    this.starts = starts;
+  }
+
+
+  /**
+   * @return the per-segment doc id sets
+   */
+  public DocIdSet[] getSets() {
+    return this.sets;
+  }
+
+
+  @Override
+  public DocIdSetIterator iterator() throws IOException {
+    return new Iterator();
+  }
+
+
+  @Override
+  public boolean isCacheable() {
+    for (DocIdSet set : this.sets) {
+      if (!set.isCacheable()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Iterator over each segment's doc id set in turn.
+   */
+  private final class Iterator extends DocIdSetIterator {
+
+    /**
+     * The current segment.
+     */
+    private int segment = -1;
+
+    /**
+     * The current segment's iterator, or null before the first and after
+     * the last document.
+     */
+    private DocIdSetIterator current;
+
+    /**
+     * The current document.
+     */
+    private int doc = -1;
+
+
+    @Override
+    public int docID() {
+      return this.doc;
+    }
+
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (this.current != null) {
+        int next = this.current.nextDoc();
+        if (next != NO_MORE_DOCS) {
+          this.doc = next + MultiDocIdSet.this.starts[this.segment];
+          return this.doc;
+        }
+      }
+      return nextSegment(0);
+    }
+
+
+    @Override
+    public int advance(final int target) throws IOException {
+      int[] starts = MultiDocIdSet.this.starts;
+      if (this.current != null && target < starts[this.segment + 1]) {
+        int next = this.current.advance(target - starts[this.segment]);
+        if (next != NO_MORE_DOCS) {
+          this.doc = next + starts[this.segment];
+          return this.doc;
+        }
+      }
+
+      // Skip the segments that end before the target.
+      while (this.segment + 1 < MultiDocIdSet.this.sets.length
+          && starts[this.segment + 2] <= target) {
+        this.segment++;
+      }
+      return nextSegment(target);
+    }
+
+
+    /**
+     * Moves to the first document at or after the target in the segments
+     * after the current one.
+     * @param target the target doc id
+     * @return the new current document
+     * @throws IOException if IO errors occur
+     */
+    private int nextSegment(final int target) throws IOException {
+      DocIdSet[] sets = MultiDocIdSet.this.sets;
+      int[] starts = MultiDocIdSet.this.starts;
+      while (++this.segment < sets.length) {
+        this.current = sets[this.segment].iterator();
+        if (this.current == null) {
+          continue;
+        }
+        int start = starts[this.segment];
+        int next = target > start
+            ? this.current.advance(target - start)
+            : this.current.nextDoc();
+        if (next != NO_MORE_DOCS) {
+          this.doc = next + start;
+          return this.doc;
+        }
+      }
+      this.segment = sets.length;
+      this.current = null;
+      this.doc = NO_MORE_DOCS;
+      return this.doc;
+    }
+
+  }
+
+}
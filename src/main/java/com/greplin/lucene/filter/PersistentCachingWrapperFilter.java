@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import com.google.common.base.Objects;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists the per-segment results of a filter in a PersistentFilterStore,
+ * so they are loaded from disk rather than recomputed after a restart.
+ * Results for readers that aren't plain segment readers, such as filtered
+ * readers, are computed without persisting them.
+ *
+ * The store is only an optimization: if a result can't be loaded or
+ * stored, the error is logged and the result is computed as usual.
+ *
+ * Loading maps the stored file on every call, so wrap this filter in a
+ * ConcurrentCachingWrapperFilter to keep the mapped result in memory.  Like
+ * ConcurrentCachingWrapperFilter, it ignores deletions.
+ */
+public class PersistentCachingWrapperFilter extends Filter {
+
+  /**
+   * Logger.
+   */
+  private static final Logger LOG =
+      Logger.getLogger(PersistentCachingWrapperFilter.class.getName());
+
+
+  /**
+   * The underlying filter.
+   */
+  private final Filter underlying;
+
+
+  /**
+   * Identifies the underlying filter in the store.  Must be stable across
+   * restarts and unique among the filters sharing the store.
+   */
+  private final String filterId;
+
+
+  /**
+   * The store.
+   */
+  private final PersistentFilterStore store;
+
+
+  /**
+   * Constructs a new persistent wrapper for the given underlying filter.
+   * @param underlying the underlying filter
+   * @param filterId identifies the underlying filter in the store, which
+   *     must be stable across restarts and unique among the filters sharing
+   *     the store
+   * @param store the store
+   */
+  public PersistentCachingWrapperFilter(
+      final Filter underlying,
+      final String filterId,
+      final PersistentFilterStore store) {
+    this.underlying = underlying;
+    this.filterId = filterId;
+    this.store = store;
+  }
+
+
+  @Override
+  public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+    String segment = PersistentFilterStore.getSegmentName(reader);
+    if (segment == null) {
+      return this.underlying.getDocIdSet(reader);
+    }
+
+    try {
+      DocIdSet stored =
+          this.store.load(segment, this.filterId, reader.maxDoc());
+      if (stored != null) {
+        return stored;
+      }
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "Could not load " + this.filterId
+          + " for segment " + segment, ex);
+    }
+
+    // Storing iterates the result, so it must be possible to iterate again.
+    DocIdSet result =
+        DocIdSets.cacheable(this.underlying.getDocIdSet(reader), reader);
+    try {
+      this.store.store(segment, this.filterId, reader.maxDoc(), result);
+    } catch (IOException ex) {
+      LOG.log(Level.WARNING, "Could not store " + this.filterId
+          + " for segment " + segment, ex);
+    }
+    return result;
+  }
+
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    PersistentCachingWrapperFilter that = (PersistentCachingWrapperFilter) o;
+    return this.filterId.equals(that.filterId)
+        && this.underlying.equals(that.underlying)
+        && this.store == that.store;
+  }
+
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(this.underlying, this.filterId);
+  }
+
+
+  @Override
+  public String toString() {
+    return "PersistentCachingWrapperFilter{"
+        + "filterId=" + this.filterId
+        + ", underlying=" + this.underlying
+        + '}';
+  }
+
+}
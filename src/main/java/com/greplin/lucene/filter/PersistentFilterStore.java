@@ -0,0 +1,489 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * Stores per-segment filter results in sidecar files, so they survive
+ * restarts.  Each file holds one filter's result for one segment, as a
+ * bitset or a sorted int array, and is memory mapped when read, so loading
+ * a result copies nothing onto the heap.
+ *
+ * Files are keyed by segment name and a caller-supplied filter id, and
+ * record the segment's maxDoc, which is checked on load.  Segment names are
+ * only unique within an index, so use a separate directory per index and
+ * clear it if the index is recreated from scratch.
+ */
+public final class PersistentFilterStore {
+
+  /**
+   * Identifies sidecar files.
+   */
+  private static final int MAGIC = 0x47464c54; // "GFLT"
+
+  /**
+   * Version of the file format.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Encoding of a result as bitset words.
+   */
+  private static final int BITSET = 0;
+
+  /**
+   * Encoding of a result as sorted ints.
+   */
+  private static final int SORTED_INTS = 1;
+
+  /**
+   * Extension of sidecar files.
+   */
+  private static final String EXTENSION = ".flt";
+
+
+  /**
+   * Extension of files that are still being written.
+   */
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  /**
+   * Data starts on a long boundary, so the views are aligned.
+   */
+  private static final int ALIGNMENT = Long.SIZE / Byte.SIZE;
+
+
+  /**
+   * The directory holding the sidecar files.
+   */
+  private final File directory;
+
+
+  /**
+   * Temporary files this store is currently writing, which must survive
+   * {@link #removeStale(IndexReader)}.
+   */
+  private final Set<File> pending =
+      Sets.newSetFromMap(Maps.<File, Boolean>newConcurrentMap());
+
+
+  /**
+   * Creates a store in the given directory, creating it if needed.
+   * @param directory the directory holding the sidecar files
+   * @throws IOException if the directory can't be created
+   */
+  public PersistentFilterStore(final File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    this.directory = directory;
+  }
+
+
+  /**
+   * @param reader a reader
+   * @return the reader's segment name, if it reads a segment directly,
+   *     else null
+   */
+  @Nullable
+  static String getSegmentName(final IndexReader reader) {
+    return reader instanceof SegmentReader
+        ? ((SegmentReader) reader).getSegmentName() : null;
+  }
+
+
+  /**
+   * @param segment the segment name
+   * @param filterId the filter id
+   * @return the sidecar file for the filter's result in the segment
+   */
+  private File file(final String segment, final String filterId) {
+    return new File(this.directory, segment + "-"
+        + Hashing.md5().hashString(filterId, Charsets.UTF_8) + EXTENSION);
+  }
+
+
+  /**
+   * Loads a stored result.
+   * @param segment the segment name
+   * @param filterId the filter id
+   * @param maxDoc the segment's maxDoc
+   * @return the memory mapped result, or null if there is no valid stored
+   *     result
+   * @throws IOException if the file can't be read
+   */
+  @Nullable
+  public DocIdSet load(final String segment, final String filterId,
+                       final int maxDoc) throws IOException {
+    File file = file(segment, filterId);
+    if (!file.exists()) {
+      return null;
+    }
+
+    MappedByteBuffer buffer;
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      buffer = input.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, input.length());
+    } finally {
+      // The mapping stays valid after the file is closed.
+      input.close();
+    }
+
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return null;
+      }
+      int encoding = buffer.getInt();
+      int storedMaxDoc = buffer.getInt();
+      int count = buffer.getInt();
+      byte[] id = new byte[buffer.getInt()];
+      buffer.get(id);
+      if (storedMaxDoc != maxDoc
+          || !filterId.equals(new String(id, Charsets.UTF_8))) {
+        return null;
+      }
+      buffer.position(align(buffer.position()));
+      ByteBuffer data = buffer.slice();
+      if (encoding == BITSET) {
+        LongBuffer words = data.asLongBuffer();
+        return words.remaining() < FixedBitSet.bits2words(maxDoc)
+            ? null : new MappedBitSet(words, maxDoc);
+      } else if (encoding == SORTED_INTS) {
+        IntBuffer ints = data.asIntBuffer();
+        return ints.remaining() < count
+            ? null : new MappedSortedIntDocIdSet(ints, count);
+      } else {
+        return null;
+      }
+    } catch (BufferUnderflowException ex) {
+      // Truncated file.
+      return null;
+    }
+  }
+
+
+  /**
+   * Stores a result, replacing any stored result atomically.
+   * @param segment the segment name
+   * @param filterId the filter id
+   * @param maxDoc the segment's maxDoc
+   * @param docIdSet the result
+   * @throws IOException if the file can't be written
+   */
+  public void store(final String segment, final String filterId,
+                    final int maxDoc, @Nullable final DocIdSet docIdSet)
+      throws IOException {
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    DocIdSetIterator iterator = docIdSet == null ? null : docIdSet.iterator();
+    if (iterator != null) {
+      bits.or(iterator);
+    }
+    int count = bits.cardinality();
+
+    final int bitsPerIntPowerLogTwo = 5; // 2^5 = 32
+    boolean dense = count > maxDoc >> bitsPerIntPowerLogTwo;
+    byte[] id = filterId.getBytes(Charsets.UTF_8);
+
+    File temp = File.createTempFile(
+        segment + ".pending", TEMP_EXTENSION, this.directory);
+    this.pending.add(temp);
+    boolean success = false;
+    try {
+      DataOutputStream output = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(dense ? BITSET : SORTED_INTS);
+        output.writeInt(maxDoc);
+        output.writeInt(count);
+        output.writeInt(id.length);
+        output.write(id);
+        while (output.size() != align(output.size())) {
+          output.writeByte(0);
+        }
+
+        if (dense) {
+          for (long word : bits.getBits()) {
+            output.writeLong(word);
+          }
+        } else {
+          for (int doc = count == 0 ? -1 : bits.nextSetBit(0); doc != -1;
+               doc = doc + 1 < maxDoc ? bits.nextSetBit(doc + 1) : -1) {
+            output.writeInt(doc);
+          }
+        }
+      } finally {
+        output.close();
+      }
+
+      File file = file(segment, filterId);
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Could not rename " + temp + " to " + file);
+      }
+      success = true;
+    } finally {
+      if (!success && !temp.delete()) {
+        temp.deleteOnExit();
+      }
+      this.pending.remove(temp);
+    }
+  }
+
+
+  /**
+   * Deletes the stored results of segments the reader doesn't have, such as
+   * segments that were merged away while the process was down, and
+   * temporary files left behind by writes that never finished.
+   * @param reader a reader of the current index
+   */
+  public void removeStale(final IndexReader reader) {
+    Set<String> segments = Sets.newHashSet();
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      String segment = getSegmentName(subReader);
+      if (segment != null) {
+        segments.add(segment);
+      }
+    }
+
+    File[] files = this.directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      int separator = name.lastIndexOf('-');
+      if (name.endsWith(EXTENSION) && separator > 0
+          && !segments.contains(name.substring(0, separator))) {
+        file.delete();
+      } else if (name.endsWith(TEMP_EXTENSION)
+          && !this.pending.contains(file)) {
+        file.delete();
+      }
+    }
+  }
+
+
+  /**
+   * @param position a position in a file
+   * @return the position rounded up to the alignment
+   */
+  private static int align(final int position) {
+    return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+
+  /**
+   * A bitset backed by memory mapped words.
+   */
+  private static final class MappedBitSet extends DocIdSet implements Bits {
+
+    /**
+     * The words of the bitset.
+     */
+    private final LongBuffer words;
+
+    /**
+     * The number of bits.
+     */
+    private final int numBits;
+
+
+    /**
+     * Creates a mapped bitset.
+     * @param words the words of the bitset
+     * @param numBits the number of bits
+     */
+    private MappedBitSet(final LongBuffer words, final int numBits) {
+      this.words = words;
+      this.numBits = numBits;
+    }
+
+
+    @Override
+    public boolean get(final int index) {
+      return (this.words.get(index >> 6) & (1L << index)) != 0;
+    }
+
+
+    @Override
+    public int length() {
+      return this.numBits;
+    }
+
+
+    @Override
+    public boolean isCacheable() {
+      return true;
+    }
+
+
+    @Override
+    public DocIdSetIterator iterator() {
+      return new DocIdSetIterator() {
+        private int doc = -1;
+
+        @Override
+        public int docID() {
+          return this.doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          return advance(this.doc + 1);
+        }
+
+        @Override
+        public int advance(final int target) {
+          if (target >= MappedBitSet.this.numBits) {
+            this.doc = NO_MORE_DOCS;
+            return this.doc;
+          }
+          LongBuffer words = MappedBitSet.this.words;
+          int index = target >> 6;
+          long word = words.get(index) >>> target;
+          if (word != 0) {
+            this.doc = target + Long.numberOfTrailingZeros(word);
+            return this.doc;
+          }
+          int numWords = FixedBitSet.bits2words(MappedBitSet.this.numBits);
+          while (++index < numWords) {
+            word = words.get(index);
+            if (word != 0) {
+              this.doc = (index << 6) + Long.numberOfTrailingZeros(word);
+              return this.doc;
+            }
+          }
+          this.doc = NO_MORE_DOCS;
+          return this.doc;
+        }
+      };
+    }
+
+  }
+
+
+  /**
+   * A sorted int doc id set backed by memory mapped ints.
+   */
+  private static final class MappedSortedIntDocIdSet extends DocIdSet {
+
+    /**
+     * The sorted doc ids.
+     */
+    private final IntBuffer ints;
+
+    /**
+     * The number of doc ids.
+     */
+    private final int size;
+
+
+    /**
+     * Creates a mapped sorted int doc id set.
+     * @param ints the sorted doc ids
+     * @param size the number of doc ids
+     */
+    private MappedSortedIntDocIdSet(final IntBuffer ints, final int size) {
+      this.ints = ints;
+      this.size = size;
+    }
+
+
+    @Override
+    public boolean isCacheable() {
+      return true;
+    }
+
+
+    @Override
+    public DocIdSetIterator iterator() {
+      return new DocIdSetIterator() {
+        private int index = -1;
+
+        private int doc = -1;
+
+        @Override
+        public int docID() {
+          return this.doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          return moveTo(this.index + 1);
+        }
+
+        @Override
+        public int advance(final int target) {
+          // Binary search for the first doc >= target after the current one.
+          IntBuffer ints = MappedSortedIntDocIdSet.this.ints;
+          int low = this.index + 1;
+          int high = MappedSortedIntDocIdSet.this.size;
+          while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ints.get(mid) < target) {
+              low = mid + 1;
+            } else {
+              high = mid;
+            }
+          }
+          return moveTo(low);
+        }
+
+        private int moveTo(final int newIndex) {
+          if (newIndex < MappedSortedIntDocIdSet.this.size) {
+            this.index = newIndex;
+            this.doc = MappedSortedIntDocIdSet.this.ints.get(newIndex);
+          } else {
+            this.index = MappedSortedIntDocIdSet.this.size;
+            this.doc = NO_MORE_DOCS;
+          }
+          return this.doc;
+        }
+      };
+    }
+
+  }
+
+}
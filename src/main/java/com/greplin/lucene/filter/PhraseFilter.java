@@ -17,24 +17,35 @@
 package com.greplin.lucene.filter;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
+import com.greplin.lucene.analysis.BigramFilter;
 import com.greplin.lucene.index.IndexReaders;
 import com.greplin.lucene.util.AllDocsIntersectionProvider;
 import com.greplin.lucene.util.Intersection;
 import com.greplin.lucene.util.IntersectionProvider;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultipleTermPositions;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermPositions;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
-import org.apache.lucene.util.FixedBitSet;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.SortedSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Filters for documents matching a phrase.
@@ -43,21 +54,49 @@ import java.util.SortedSet;
  * - faster with less features
  * - supports a single field only
  * - does not compute score
- * - does not support slop
+ * - slop is not supported when two positions of the phrase can match the
+ *   same term, since one occurrence could then stand in for both
  *
  * Additional features:
  * - supports AND type intersection queries, this will perform
  *   much better than an external BooleanFilter
+ * - supports alternative terms and prefixes at each position, see
+ *   {@link Builder#addAny} and {@link Builder#addPrefix}
+ * - can check whether any document matches without finding all of them,
+ *   see {@link #matchesAny}
+ * - can evaluate segments concurrently on an ExecutorService, see
+ *   {@link Builder#executor}
+ * - can resolve pairs of adjacent terms from a companion field of bigrams,
+ *   which skips the long postings of common words, see
+ *   {@link Builder#bigramField}
  *
  * Optimization notes:
  * - Using a shared TermPositions with seeking saves about 10% !
+ * - Positions live in a flat per-thread scratch array (see
+ *   PhraseFilterMatchList), so matching doesn't allocate per document.
+ * - Each segment's matches are encoded separately in the smallest of
+ *   several representations (see DocIdSets#compact).
  */
 public class PhraseFilter extends Filter {
 
   /**
-   * The terms comprising the phrase.
+   * The most candidate documents matchesAny() checks at once.  Batches
+   * start at a single document, so common phrases are confirmed after
+   * reading very little, and grow up to this size so rare phrases still
+   * intersect a term's postings in long runs.
    */
-  private final Term[] terms;
+  private static final int MAX_EXISTENCE_BATCH = 1024;
+
+  /**
+   * The default limit on the number of terms a prefix expands to.
+   */
+  public static final int DEFAULT_MAX_EXPANSIONS = 1024;
+
+
+  /**
+   * The positions comprising the phrase.
+   */
+  private final PhraseFilterPosition[] positions;
 
 
   /**
@@ -66,6 +105,35 @@ public class PhraseFilter extends Filter {
   private final IntersectionProvider intersectionProvider;
 
 
+  /**
+   * The maximum distance between the positions of the terms, each measured
+   * relative to the term's offset in the phrase.  0 for exact phrases.
+   */
+  private final int slop;
+
+
+  /**
+   * Executor used to match segments concurrently, or null to match them
+   * sequentially on the calling thread.
+   */
+  @Nullable
+  private final ExecutorService executor;
+
+
+  /**
+   * Companion field holding the bigrams of the phrase's field, as produced
+   * by BigramFilter, or null to match against the phrase's field only.
+   */
+  @Nullable
+  private final String bigramField;
+
+
+  /**
+   * The maximum number of terms a prefix may expand to in a segment.
+   */
+  private final int maxExpansions;
+
+
   /**
    * Construct a new phrase filter.
    * @param intersectionProvider other doc id set to intersect with
@@ -73,8 +141,35 @@ public class PhraseFilter extends Filter {
    */
   public PhraseFilter(
       final IntersectionProvider intersectionProvider, final Term... terms) {
-    this.terms = Arrays.copyOf(terms, terms.length);
+    this(intersectionProvider, 0, null, null, DEFAULT_MAX_EXPANSIONS,
+        PhraseFilterPosition.of(terms));
+  }
+
+
+  /**
+   * Construct a new phrase filter.
+   * @param intersectionProvider other doc id set to intersect with
+   * @param slop the maximum distance between normalized term positions
+   * @param executor executor to match segments on, or null to match them
+   *     on the calling thread
+   * @param bigramField companion field of bigrams, or null
+   * @param maxExpansions the maximum number of terms a prefix may expand to
+   *     in a segment
+   * @param positions the positions in the phrase
+   */
+  private PhraseFilter(
+      final IntersectionProvider intersectionProvider,
+      final int slop,
+      @Nullable final ExecutorService executor,
+      @Nullable final String bigramField,
+      final int maxExpansions,
+      final PhraseFilterPosition[] positions) {
+    this.positions = positions;
     this.intersectionProvider = intersectionProvider;
+    this.slop = slop;
+    this.executor = executor;
+    this.bigramField = bigramField;
+    this.maxExpansions = maxExpansions;
   }
 
 
@@ -128,6 +223,14 @@ public class PhraseFilter extends Filter {
   }
 
 
+  /**
+   * @return Builder object to create a PhraseFilter
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+
   @Override
   public boolean equals(final Object o) {
     if (this == o) {
@@ -139,21 +242,30 @@ public class PhraseFilter extends Filter {
 
     PhraseFilter that = (PhraseFilter) o;
     return this.intersectionProvider.equals(that.intersectionProvider)
-        && Arrays.equals(this.terms, that.terms);
+        && this.slop == that.slop
+        && this.maxExpansions == that.maxExpansions
+        && Objects.equal(this.bigramField, that.bigramField)
+        && Arrays.equals(this.positions, that.positions);
   }
 
 
   @Override
   public int hashCode() {
     return Objects.hashCode(
-        Arrays.hashCode(this.terms), this.intersectionProvider);
+        Arrays.hashCode(this.positions),
+        this.intersectionProvider,
+        this.slop,
+        this.maxExpansions,
+        this.bigramField);
   }
 
 
   @Override
   public String toString() {
     return "PhraseFilter{"
-        + "terms=" + Arrays.toString(this.terms)
+        + "terms=" + Arrays.toString(this.positions)
+        + ", slop=" + this.slop
+        + (this.bigramField == null ? "" : ", bigramField=" + this.bigramField)
         + ", intersectionProvider=" + this.intersectionProvider
         + '}';
   }
@@ -162,205 +274,588 @@ public class PhraseFilter extends Filter {
   @Override
   public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
     List<IndexReader> subReaders = IndexReaders.gatherSubReaders(reader);
-    PhraseFilterMatchList[] results =
-        new PhraseFilterMatchList[subReaders.size()];
-    int matchCount = 0;
-    int readerNumber = 0;
-
-    for (IndexReader subReader : subReaders) {
-      SortedSet<TermWithFrequency> termsOrderedByFrequency = Sets.newTreeSet();
-      for (int i = 0; i < this.terms.length; i++) {
-        Term t = this.terms[i];
-        termsOrderedByFrequency.add(
-            new TermWithFrequency(t, subReader.docFreq(t), i));
+    int[][] results;
+    if (this.executor == null || subReaders.size() < 2) {
+      results = new int[subReaders.size()][];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = match(subReaders.get(i));
       }
+    } else {
+      results = matchConcurrently(subReaders);
+    }
 
-      PhraseFilterMatchList matches = null;
-      TermPositions termPositions = subReader.termPositions();
-      try {
-        for (TermWithFrequency term : termsOrderedByFrequency) {
-          if (term.docFreq == 0) {
-            break;
-          }
+    if (results.length == 1) {
+      return DocIdSets.compact(results[0], reader.maxDoc());
+    }
+
+    DocIdSet[] sets = new DocIdSet[results.length];
+    int[] starts = new int[results.length + 1];
+    for (int i = 0; i < results.length; i++) {
+      int maxDoc = subReaders.get(i).maxDoc();
+      sets[i] = DocIdSets.compact(results[i], maxDoc);
+      starts[i + 1] = starts[i] + maxDoc;
+    }
+    return new MultiDocIdSet(sets, starts);
+  }
 
-          termPositions.seek(term.term);
 
+  /**
+   * Finds all matches of the phrase in a single segment.
+   * @param subReader the segment reader
+   * @return the sorted matching doc ids, or null if there are none
+   * @throws IOException if IO problems occur within Lucene
+   */
+  @Nullable
+  private int[] match(final IndexReader subReader) throws IOException {
+    SortedSet<TermWithFrequency> termsOrderedByFrequency = plan(subReader);
+    if (termsOrderedByFrequency == null) {
+      return null;
+    }
+
+    PhraseFilterMatchList matches = null;
+    TermPositions sharedTermPositions = subReader.termPositions();
+    try {
+      for (TermWithFrequency term : termsOrderedByFrequency) {
+        TermPositions termPositions;
+        if (term.terms.length == 1) {
+          termPositions = sharedTermPositions;
+          termPositions.seek(term.terms[0]);
+        } else {
+          termPositions = new MultipleTermPositions(subReader, term.terms);
+        }
+
+        try {
           if (matches == null) {
             // If this is the first term, collect all matches that intersect
             // with the provided initial document set.
-            Intersection intersection = this.intersectionProvider.get(reader);
+            Intersection intersection =
+                this.intersectionProvider.get(subReader);
 
-            matches = new PhraseFilterMatchList(term.docFreq);
+            matches = PhraseFilterMatchList.acquire(term.docFreq, this.slop);
             while (intersection.advanceToNextIntersection(termPositions)) {
-              int freq = termPositions.freq();
-              PhraseFilterIntList list = new PhraseFilterIntList(freq);
-              for (int i = 0; i < freq; i++) {
-                list.add(termPositions.nextPosition() - term.offset);
-              }
-              matches.add(termPositions.doc(), list);
+              matches.add(termPositions, term.offset);
             }
           } else {
             // Otherwise, intersect with the existing matches.
             matches.intersect(termPositions, term.offset);
           }
-
-          if (matches.getCount() == 0) {
-            break;
+        } finally {
+          if (termPositions != sharedTermPositions) {
+            termPositions.close();
           }
         }
-      } finally {
-        termPositions.close();
-      }
 
+        if (matches.getCount() == 0) {
+          return null;
+        }
+      }
+      return matches == null ? null : matches.copyDocIds();
+    } finally {
+      sharedTermPositions.close();
       if (matches != null) {
-        results[readerNumber] = matches;
-        matchCount += matches.getCount();
+        PhraseFilterMatchList.release(matches);
       }
-      readerNumber++;
-    }
-
-    final int bitsPerIntPowerLogTwo = 5; // 2^5 = 32
-    if (matchCount > reader.maxDoc() >> bitsPerIntPowerLogTwo) {
-      FixedBitSet result = new FixedBitSet(reader.maxDoc());
-      int readerOffset = 0;
-      for (int readerIndex = 0; readerIndex < results.length; readerIndex++) {
-        PhraseFilterMatchList matches = results[readerIndex];
-        if (matches != null) {
-          int count = matches.getCount();
-          int[] docIds = matches.getDocIds();
-          for (int i = 0; i < count; i++) {
-            result.set(docIds[i] + readerOffset);
-          }
+    }
+  }
+
+
+  /**
+   * Plans matching the phrase in a single segment.
+   * @param subReader the segment reader
+   * @return the terms to match at each offset, rarest first, or null if
+   *     some offset can't match at all
+   * @throws IOException if IO problems occur within Lucene
+   */
+  @Nullable
+  private SortedSet<TermWithFrequency> plan(final IndexReader subReader)
+      throws IOException {
+    Term[][] plan = planBigrams(subReader);
+    if (plan == null) {
+      plan = new Term[this.positions.length][];
+      for (int i = 0; i < plan.length; i++) {
+        plan[i] = this.positions[i].resolve(subReader, this.maxExpansions);
+      }
+    }
+
+    SortedSet<TermWithFrequency> termsOrderedByFrequency = Sets.newTreeSet();
+    for (int i = 0; i < plan.length; i++) {
+      Term[] terms = plan[i];
+      if (terms == null) {
+        continue;
+      }
+      // A prefix can expand to enough terms to overflow an int, and no
+      // more than maxDoc documents can match anyway.
+      long docFreq = 0;
+      for (Term t : terms) {
+        docFreq += subReader.docFreq(t);
+      }
+      if (docFreq == 0) {
+        return null;
+      }
+      termsOrderedByFrequency.add(new TermWithFrequency(
+          terms, (int) Math.min(docFreq, subReader.maxDoc()), i));
+    }
+    return termsOrderedByFrequency;
+  }
+
+
+  /**
+   * Plans matching an exact phrase of single terms against the bigram field:
+   * the bigrams starting at even offsets cover every term, and a phrase of
+   * odd length ends with the bigram of its last two terms, which overlaps
+   * the one before it.  A single bigram is usually far rarer than either of
+   * its terms, so this avoids walking the postings of common words.
+   * @param subReader the segment reader
+   * @return the terms to match at each offset of the phrase, null at offsets
+   *     with nothing to match, or null when the bigram field can't be used
+   *     in this segment
+   * @throws IOException if IO problems occur within Lucene
+   */
+  @Nullable
+  private Term[][] planBigrams(final IndexReader subReader)
+      throws IOException {
+    if (this.bigramField == null || this.slop != 0
+        || this.positions.length < 2) {
+      return null;
+    }
+    Term[] terms = new Term[this.positions.length];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = this.positions[i].getSingleTerm();
+
+      // OK to compare interned strings with !=
+      // noinspection StringEquality
+      if (terms[i] == null || terms[i].field() != terms[0].field()) {
+        return null;
+      }
+    }
+    // Documents indexed without bigrams, such as those from before the
+    // bigram field was adopted, can end up in any segment through merges.
+    // Only use the bigrams where every document has them.
+    Term marker = new Term(this.bigramField, BigramFilter.MARKER);
+    if (subReader.docFreq(marker) < subReader.maxDoc()) {
+      return null;
+    }
+
+    Term[][] plan = new Term[terms.length][];
+    for (int i = 0; i + 1 < terms.length; i += 2) {
+      plan[i] = new Term[] {bigram(terms[i], terms[i + 1])};
+    }
+    if (terms.length % 2 == 1) {
+      int last = terms.length - 2;
+      plan[last] = new Term[] {bigram(terms[last], terms[last + 1])};
+    }
+    return plan;
+  }
+
+
+  /**
+   * @param first the first term
+   * @param second the second term
+   * @return the term for the bigram of the two terms in the bigram field
+   */
+  private Term bigram(final Term first, final Term second) {
+    return new Term(
+        this.bigramField, BigramFilter.bigram(first.text(), second.text()));
+  }
+
+
+  /**
+   * Checks whether any document matches the phrase, without finding all of
+   * them.  Segments are checked in turn, and each one a document at a time
+   * from its rarest term, in batches that double in size: checking stops
+   * as soon as a match is confirmed or a term runs out of documents.
+   * @param reader the reader, either a single segment or a composite
+   * @return whether any document matches
+   * @throws IOException if IO problems occur within Lucene
+   */
+  public boolean matchesAny(final IndexReader reader) throws IOException {
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      if (matchesAnyInSegment(subReader)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Checks whether any document in a single segment matches the phrase.
+   * @param subReader the segment reader
+   * @return whether any document matches
+   * @throws IOException if IO problems occur within Lucene
+   */
+  private boolean matchesAnyInSegment(final IndexReader subReader)
+      throws IOException {
+    SortedSet<TermWithFrequency> termsOrderedByFrequency = plan(subReader);
+    if (termsOrderedByFrequency == null || termsOrderedByFrequency.isEmpty()) {
+      return false;
+    }
+    TermWithFrequency[] terms = termsOrderedByFrequency.toArray(
+        new TermWithFrequency[termsOrderedByFrequency.size()]);
+
+    // Unlike match(), every term keeps its own enumerator, since they are
+    // all advanced in step.
+    TermPositions[] termPositions = new TermPositions[terms.length];
+    int[] currentDocs = new int[terms.length];
+    PhraseFilterMatchList matches =
+        PhraseFilterMatchList.acquire(1, this.slop);
+    try {
+      for (int i = 0; i < terms.length; i++) {
+        if (terms[i].terms.length == 1) {
+          termPositions[i] = subReader.termPositions(terms[i].terms[0]);
+        } else {
+          termPositions[i] =
+              new MultipleTermPositions(subReader, terms[i].terms);
         }
-        readerOffset += subReaders.get(readerIndex).maxDoc();
+        currentDocs[i] = -1;
       }
-      return result;
-    } else if (matchCount == 0) {
-      return DocIdSets.EMPTY;
-    } else {
-      int[] result = new int[matchCount];
-      int base = 0;
-      int readerOffset = 0;
-      for (int readerIndex = 0; readerIndex < results.length; readerIndex++) {
-        PhraseFilterMatchList matches = results[readerIndex];
-        if (matches != null) {
-          int count = matches.getCount();
-          int[] docIds = matches.getDocIds();
-          for (int i = 0; i < count; i++) {
-            result[base + i] = docIds[i] + readerOffset;
+
+      Intersection intersection = this.intersectionProvider.get(subReader);
+      boolean more = true;
+      for (int batchSize = 1; more;
+           batchSize = Math.min(2 * batchSize, MAX_EXISTENCE_BATCH)) {
+        matches.reset(batchSize, this.slop);
+        while (matches.getCount() < batchSize) {
+          more = intersection.advanceToNextIntersection(termPositions[0]);
+          if (!more) {
+            break;
           }
-          base += count;
+          matches.add(termPositions[0], terms[0].offset);
+        }
+
+        for (int i = 1; i < terms.length && matches.getCount() > 0; i++) {
+          currentDocs[i] = matches.intersect(
+              termPositions[i], terms[i].offset, currentDocs[i]);
+          if (currentDocs[i] == DocIdSetIterator.NO_MORE_DOCS) {
+            more = false;
+          }
+        }
+        if (matches.getCount() > 0) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      for (TermPositions t : termPositions) {
+        if (t != null) {
+          t.close();
+        }
+      }
+      PhraseFilterMatchList.release(matches);
+    }
+  }
+
+
+  /**
+   * Finds all matches of the phrase in each of the given segments, sharing
+   * the work between the executor and the calling thread.  Segments are
+   * claimed one at a time, so the calling thread only ever waits for
+   * segments that another thread is already matching.
+   * @param subReaders the segment readers
+   * @return the matching doc ids for each segment, collated with subReaders
+   * @throws IOException if IO problems occur within Lucene
+   */
+  private int[][] matchConcurrently(
+      final List<IndexReader> subReaders) throws IOException {
+    final int[][] results = new int[subReaders.size()][];
+    final AtomicInteger nextSegment = new AtomicInteger();
+    final CountDownLatch finished = new CountDownLatch(results.length);
+    final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        matchClaimedSegments(
+            subReaders, results, nextSegment, finished, failure);
+      }
+    };
+
+    List<Future<?>> futures =
+        Lists.newArrayListWithCapacity(subReaders.size() - 1);
+    try {
+      for (int i = 1; i < subReaders.size(); i++) {
+        futures.add(this.executor.submit(worker));
+      }
+    } catch (RejectedExecutionException ex) {
+      // The calling thread picks up whatever the executor won't.
+    }
+
+    try {
+      worker.run();
+      finished.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while matching " + this);
+    } finally {
+      // Tasks still queued have nothing left to do.
+      for (Future<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    Throwable cause = failure.get();
+    if (cause != null) {
+      Throwables.propagateIfPossible(cause, IOException.class);
+      throw new RuntimeException(cause);
+    }
+    return results;
+  }
+
+
+  /**
+   * Repeatedly claims the next unmatched segment and matches it, until no
+   * segments remain.  Once any segment fails, the remaining segments are
+   * claimed but not matched.
+   * @param subReaders the segment readers
+   * @param results the matching doc ids for each segment, collated with
+   *     subReaders
+   * @param nextSegment the index of the next unclaimed segment
+   * @param finished counted down once for every claimed segment
+   * @param failure holds the first failure, if any
+   */
+  private void matchClaimedSegments(
+      final List<IndexReader> subReaders,
+      final int[][] results,
+      final AtomicInteger nextSegment,
+      final CountDownLatch finished,
+      final AtomicReference<Throwable> failure) {
+    for (int i = nextSegment.getAndIncrement(); i < results.length;
+         i = nextSegment.getAndIncrement()) {
+      try {
+        if (failure.get() == null) {
+          results[i] = match(subReaders.get(i));
         }
-        readerOffset += subReaders.get(readerIndex).maxDoc();
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      } finally {
+        finished.countDown();
       }
-      return new SortedIntArrayDocIdSet(result);
     }
   }
 
 
   /**
-   * DocId set based on a sorted array of integers.
-   * The integer array is not defensively copied - so don't modify it!
+   * Builder pattern.
    */
-  private static final class SortedIntArrayDocIdSet extends DocIdSet {
+  public static final class Builder {
+
+    /**
+     * The positions comprising the phrase, in order.
+     */
+    private final List<PhraseFilterPosition> positions = Lists.newArrayList();
 
     /**
-     * The sorted array of integers.
+     * The intersection provider.
      */
-    private final int[] ints;
+    private IntersectionProvider intersectionProvider =
+        AllDocsIntersectionProvider.INSTANCE;
+
+    /**
+     * The maximum distance between normalized term positions.
+     */
+    private int slop;
+
+    /**
+     * Executor used to match segments concurrently.
+     */
+    @Nullable
+    private ExecutorService executor;
+
+    /**
+     * Companion field of bigrams.
+     */
+    @Nullable
+    private String bigramField;
+
+    /**
+     * The maximum number of terms a prefix may expand to in a segment.
+     */
+    private int maxExpansions = DEFAULT_MAX_EXPANSIONS;
 
 
     /**
-     * Constructs a new doc id set.
-     * @param ints sorted array of integers
+     * Not externally instantiable - use PhraseFilter.builder() instead.
      */
-    private SortedIntArrayDocIdSet(final int[] ints) {
-      this.ints = ints;
+    private Builder() { }
+
+
+    /**
+     * Appends terms to the phrase.
+     * @param terms the terms to append, in order
+     * @return this builder, for chaining
+     */
+    public Builder add(final Term... terms) {
+      this.positions.addAll(Arrays.asList(PhraseFilterPosition.of(terms)));
+      return this;
     }
 
 
-    @Override
-    public DocIdSetIterator iterator() throws IOException {
-      return new SortedIntArrayDocIdSetIterator(this.ints);
+    /**
+     * Appends terms to the phrase.
+     * @param field the field to find phrases in
+     * @param values the term values to append, in order
+     * @return this builder, for chaining
+     */
+    public Builder add(final String field, final String... values) {
+      return add(convertToTerms(field, values));
     }
 
 
-    @Override
-    public boolean isCacheable() {
-      return true;
+    /**
+     * Appends a position that matches any of the given terms.  Their
+     * positions are merged on the fly, like MultiPhraseQuery but without
+     * scoring.
+     * @param terms the alternative terms
+     * @return this builder, for chaining
+     */
+    public Builder addAny(final Term... terms) {
+      this.positions.add(PhraseFilterPosition.anyOf(terms));
+      return this;
     }
 
-  }
 
+    /**
+     * Appends a position that matches any term starting with the given
+     * prefix, for example to match as-you-type phrases like PhrasePrefixQuery
+     * does.  The prefix is expanded against each segment's terms, up to
+     * {@link #maxExpansions(int)} of them.
+     * @param prefix the prefix, as a term in the phrase's field
+     * @return this builder, for chaining
+     */
+    public Builder addPrefix(final Term prefix) {
+      this.positions.add(PhraseFilterPosition.prefix(prefix));
+      return this;
+    }
 
-  /**
-   * Iterator for sorted integer array.
-   */
-  private static final class SortedIntArrayDocIdSetIterator
-      extends DocIdSetIterator {
 
     /**
-     * The list of integers.
+     * Restricts matches to documents in the given intersection.
+     * @param intersectionProvider other doc id set to intersect with
+     * @return this builder, for chaining
      */
-    private final int[] ints;
+    public Builder intersectWith(
+        final IntersectionProvider intersectionProvider) {
+      this.intersectionProvider = intersectionProvider;
+      return this;
+    }
+
 
     /**
-     * The active index.
+     * Allows the terms to occur out of place: a document matches when the
+     * positions of the terms, each minus the term's offset in the phrase,
+     * are all within slop of each other.  This is the same distance
+     * PhraseQuery uses, so moving one term by n positions costs n and
+     * swapping two adjacent terms costs 2.  Phrases in which two positions
+     * can match the same term only support exact matching.
+     * @param slop the maximum distance, 0 for exact phrases
+     * @return this builder, for chaining
      */
-    private int index = -1;
+    public Builder slop(final int slop) {
+      if (slop < 0) {
+        throw new IllegalArgumentException("slop must be non-negative");
+      }
+      this.slop = slop;
+      return this;
+    }
 
 
     /**
-     * Constructs an iterator over a sorted integer array.
-     * @param ints the array of integers
+     * Matches the segments of multi-segment readers concurrently on the
+     * given executor.  The calling thread takes part in the work as well,
+     * so a small or saturated pool never stalls the filter.
+     * @param executor the executor to match segments on, or null to match
+     *     them sequentially on the calling thread
+     * @return this builder, for chaining
      */
-    private SortedIntArrayDocIdSetIterator(final int[] ints) {
-      this.ints = ints;
+    public Builder executor(@Nullable final ExecutorService executor) {
+      this.executor = executor;
+      return this;
     }
 
 
-    @Override
-    public int docID() {
-      return this.index < this.ints.length
-          ? this.ints[this.index] : NO_MORE_DOCS;
+    /**
+     * Resolves exact phrases from a companion field that indexes the same
+     * text through BigramFilter.  Only phrases of two or more plain terms,
+     * without slop, use the bigrams.
+     *
+     * Every document must be indexed with the companion field, including
+     * documents without text, to benefit.  Segments holding any document
+     * indexed without it, for example documents from before the field was
+     * adopted that were merged with newer ones, are matched against the
+     * phrase's field instead, until the index is fully rebuilt.
+     * @param field the companion field of bigrams, or null to only use the
+     *     phrase's field
+     * @return this builder, for chaining
+     */
+    public Builder bigramField(@Nullable final String field) {
+      this.bigramField = field == null ? null : field.intern();
+      return this;
     }
 
 
-    @Override
-    public int nextDoc() throws IOException {
-      ++this.index;
-      return this.index < this.ints.length
-          ? this.ints[this.index] : NO_MORE_DOCS;
+    /**
+     * Limits how many terms a prefix may expand to in any one segment,
+     * since each expanded term's positions are read separately.  Matching
+     * a segment where a prefix expands to more terms throws
+     * BooleanQuery.TooManyClauses, as PrefixQuery does.
+     * @param maxExpansions the maximum number of terms, by default
+     *     {@link #DEFAULT_MAX_EXPANSIONS}
+     * @return this builder, for chaining
+     */
+    public Builder maxExpansions(final int maxExpansions) {
+      if (maxExpansions < 1) {
+        throw new IllegalArgumentException("maxExpansions must be positive");
+      }
+      this.maxExpansions = maxExpansions;
+      return this;
     }
 
 
-    @Override
-    public int advance(final int target) throws IOException {
-      // TODO(robbyw): Consider doing binary search here.
-      // Though, in practice, the array is probably small enough that this
-      // would actually be slower.
-      while (docID() < target) {
-        nextDoc();
+    /**
+     * @return the constructed phrase filter
+     * @throws IllegalArgumentException if there is slop and two positions
+     *     of the phrase can match the same term
+     */
+    public PhraseFilter build() {
+      if (this.slop > 0) {
+        for (int i = 0; i < this.positions.size(); i++) {
+          for (int j = i + 1; j < this.positions.size(); j++) {
+            if (this.positions.get(i).overlaps(this.positions.get(j))) {
+              throw new IllegalArgumentException(
+                  "slop is not supported for phrases that repeat a term: "
+                  + this.positions.get(i) + ", " + this.positions.get(j));
+            }
+          }
+        }
       }
-      return docID();
+      return new PhraseFilter(
+          this.intersectionProvider,
+          this.slop,
+          this.executor,
+          this.bigramField,
+          this.maxExpansions,
+          this.positions.toArray(
+              new PhraseFilterPosition[this.positions.size()]));
     }
 
   }
 
 
   /**
-   * A term with a frequency and offset.
+   * The terms at a position with their combined frequency and offset.
    */
   private static final class TermWithFrequency
       implements Comparable<TermWithFrequency> {
 
     /**
-     * The term.
+     * The terms, any of which can occur at the position.
      */
-    private final Term term;
+    private final Term[] terms;
 
     /**
-     * Its frequency.
+     * Their combined frequency, at most maxDoc.  An upper bound on the
+     * number of documents containing any of them.
      */
     private final int docFreq;
 
@@ -372,13 +867,13 @@ public class PhraseFilter extends Filter {
 
     /**
      * Construct a term with frequency struct.
-     * @param term the term
-     * @param docFreq its frequency
+     * @param terms the terms
+     * @param docFreq their combined frequency
      * @param offset offset within the phrase
      */
     private TermWithFrequency(
-        final Term term, final int docFreq, final int offset) {
-      this.term = term;
+        final Term[] terms, final int docFreq, final int offset) {
+      this.terms = terms;
       this.docFreq = docFreq;
       this.offset = offset;
     }
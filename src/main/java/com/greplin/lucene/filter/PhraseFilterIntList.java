@@ -5,72 +5,156 @@ import org.apache.lucene.index.TermPositions;
 import java.io.IOException;
 
 /**
- * Simple list of ints.  Can not grow beyond the initial capacity.
+ * Operations on sorted lists of ints stored as slices of a shared array.
  * Only for use by PhraseFilter.
+ *
+ * Exact phrases store the candidate phrase start positions.  Sloppy phrases
+ * store sorted, disjoint intervals [low, high] as pairs of ints: the
+ * starts s of the windows [s, s + slop] that contain an occurrence of every
+ * term intersected so far, with each position measured relative to its
+ * term's offset in the phrase.
  */
 final class PhraseFilterIntList {
 
-  /**
-   * The values.
-   */
-  private final int[] ints;
-
-  /**
-   * The number of values.
-   */
-  private int count;
+  /** Not instantiable. */
+  private PhraseFilterIntList() { }
 
 
   /**
-   * Construct an empty list of ints with the given capacity.
-   * @param capacity the number of ints this list can store
+   * Intersect a list of ints with the given positions.
+   * Modifies the array in place as an optimization: the surviving ints are
+   * written starting at dest, which must not be after start.
+   * @param ints the array holding the list
+   * @param start the index of the first int in the list
+   * @param count the number of ints in the list
+   * @param dest the index to write the surviving ints to
+   * @param termPositions the term positions
+   * @param offset the offset of the term within the phrase
+   * @return the number of ints remaining in the list
+   * @throws java.io.IOException if IO problems occur within Lucene
    */
-  PhraseFilterIntList(final int capacity) {
-    this.ints = new int[capacity];
-    this.count = 0;
+  static int intersect(final int[] ints, final int start, final int count,
+                       final int dest, final TermPositions termPositions,
+                       final int offset)
+      throws IOException {
+    assert dest <= start;
+    int otherCount = termPositions.freq();
+    int end = start + count;
+    int i = start;
+    int j = 0;
+    int jValue = termPositions.nextPosition() - offset;
+    int resultEnd = dest;
+    while (i < end && j < otherCount) {
+      if (ints[i] < jValue) {
+        i++;
+      } else {
+        if (ints[i] == jValue) {
+          ints[resultEnd++] = ints[i];
+          i++;
+        }
+        j++;
+        if (j != otherCount) {
+          jValue = termPositions.nextPosition() - offset;
+        }
+      }
+    }
+    return resultEnd - dest;
   }
 
 
+
   /**
-   * Adds an int to the end of the array.
-   * @param item the item to add
+   * Appends the window start intervals allowed by the given positions to an
+   * array.  Each position p allows windows starting in [p - slop, p].
+   * @param ints the array to append to, with room for 2 * freq ints
+   * @param start the index to append at
+   * @param termPositions the term positions
+   * @param offset the offset of the term within the phrase
+   * @param slop the maximum distance between normalized positions
+   * @return the number of ints appended
+   * @throws java.io.IOException if IO problems occur within Lucene
    */
-  void add(final int item) {
-    this.ints[this.count++] = item;
+  static int addSloppy(final int[] ints, final int start,
+                       final TermPositions termPositions, final int offset,
+                       final int slop)
+      throws IOException {
+    int freq = termPositions.freq();
+    int end = start;
+    for (int i = 0; i < freq; i++) {
+      int position = termPositions.nextPosition() - offset;
+      if (end != start && position - slop <= ints[end - 1] + 1) {
+        ints[end - 1] = position;
+      } else {
+        ints[end++] = position - slop;
+        ints[end++] = position;
+      }
+    }
+    return end - start;
   }
 
 
   /**
-   * Intersect this int list with the given positions.
-   * Modifies this list in place as an optimization.
+   * Intersect a list of window start intervals with the intervals allowed
+   * by the given positions.  The result can have more intervals than the
+   * input, so it is written to a separate array.
+   * @param ints the array holding the list
+   * @param start the index of the first int in the list
+   * @param count the number of ints in the list
+   * @param dest the array to write the surviving intervals to, with room for
+   *     count + 2 * freq ints after destStart
+   * @param destStart the index to write the surviving intervals to
    * @param termPositions the term positions
    * @param offset the offset of the term within the phrase
-   * @return whether this list has any terms remaining
+   * @param slop the maximum distance between normalized positions
+   * @return the number of ints written
    * @throws java.io.IOException if IO problems occur within Lucene
    */
-  boolean intersect(final TermPositions termPositions, final int offset)
+  static int intersectSloppy(final int[] ints, final int start,
+                             final int count, final int[] dest,
+                             final int destStart,
+                             final TermPositions termPositions,
+                             final int offset, final int slop)
       throws IOException {
-    int otherCount = termPositions.freq();
-    int i = 0;
-    int j = 0;
-    int jValue = termPositions.nextPosition() - offset;
-    int resultCount = 0;
-    while (i < this.count && j < otherCount) {
-      if (this.ints[i] < jValue) {
-        i++;
-      } else {
-        if (this.ints[i] == jValue) {
-          this.ints[resultCount++] = this.ints[i];
-          i++;
+    int otherRemaining = termPositions.freq() - 1;
+    int next = termPositions.nextPosition() - offset;
+    int end = start + count;
+    int i = start;
+    int resultEnd = destStart;
+    while (i < end) {
+      // Build the next maximal interval from the remaining positions.
+      int otherLow = next - slop;
+      int otherHigh = next;
+      boolean otherExhausted = true;
+      while (otherRemaining > 0) {
+        otherRemaining--;
+        next = termPositions.nextPosition() - offset;
+        if (next - slop <= otherHigh + 1) {
+          otherHigh = next;
+        } else {
+          otherExhausted = false;
+          break;
         }
-        j++;
-        if (j != otherCount) {
-          jValue = termPositions.nextPosition() - offset;
+      }
+
+      // Emit its overlap with every list interval it touches.
+      while (i < end) {
+        int low = Math.max(ints[i], otherLow);
+        int high = Math.min(ints[i + 1], otherHigh);
+        if (low <= high) {
+          dest[resultEnd++] = low;
+          dest[resultEnd++] = high;
+        }
+        if (ints[i + 1] > otherHigh) {
+          break;
         }
+        i += 2;
+      }
+
+      if (otherExhausted) {
+        break;
       }
     }
-    this.count = resultCount;
-    return resultCount != 0;
+    return resultEnd - destStart;
   }
 
 }
@@ -1,24 +1,83 @@
 package com.greplin.lucene.filter;
 
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Simple list of matches.
  * Only for use by PhraseFilter.
+ *
+ * The positions of all matches are stored in one flat array, with a start
+ * and length per match, and lists are recycled through a per-thread
+ * scratch arena.  Matching a phrase therefore allocates nothing per
+ * document, and once a thread's arena has grown to fit its workload,
+ * nothing per segment either.
  */
 final class PhraseFilterMatchList {
 
+  /**
+   * Distance in doc ids beyond which the next candidate is reached with
+   * TermPositions.skipTo instead of repeated calls to next().  Nearer
+   * candidates are usually within the same skip interval (16 postings by
+   * default), where skipping only adds overhead.
+   */
+  private static final int SKIP_THRESHOLD = 32;
+
+  /**
+   * Lists whose arrays have grown beyond this many ints in total are not
+   * kept in the scratch arena, so one pathological phrase doesn't pin its
+   * buffers to the thread forever.
+   */
+  private static final int MAX_RETAINED_INTS = 1 << 18;
+
+  /**
+   * The per-thread scratch arena.  Holds null while the thread's list is in
+   * use, so reentrant use gets a fresh list instead of a shared one.
+   *
+   * Every thread that has matched a phrase, including each thread of an
+   * executor's pool, keeps its list for as long as the thread lives: up to
+   * MAX_RETAINED_INTS ints (1MB) across all of the list's arrays.
+   */
+  private static final ThreadLocal<PhraseFilterMatchList> SCRATCH =
+      new ThreadLocal<PhraseFilterMatchList>();
+
   /**
    * Docs that match.
    */
-  private final int[] docIds;
+  private int[] docIds;
 
   /**
-   * Collated with docIds, the positions that match for that doc.
+   * Collated with docIds, the index in positions where that doc's matching
+   * positions start.
    */
-  private final PhraseFilterIntList[] positions;
+  private int[] positionStarts;
+
+  /**
+   * Collated with docIds, the number of matching positions for that doc.
+   */
+  private int[] positionCounts;
+
+  /**
+   * The matching positions of all docs, concatenated in doc order.  For
+   * sloppy phrases, intervals of window starts instead (see
+   * PhraseFilterIntList).
+   */
+  private int[] positions;
+
+  /**
+   * Spare array that sloppy intersections write into before it is swapped
+   * with positions.
+   */
+  private int[] spare;
+
+  /**
+   * The maximum distance between normalized positions, 0 for exact phrases.
+   */
+  private int slop;
 
   /**
    * The number of matches.
@@ -26,34 +85,117 @@ final class PhraseFilterMatchList {
    */
   private int count;
 
+  /**
+   * The number of ints used in positions.
+   */
+  private int positionsEnd;
+
+
+  /**
+   * Creates an empty match list.
+   */
+  private PhraseFilterMatchList() {
+    this.docIds = new int[0];
+    this.positionStarts = new int[0];
+    this.positionCounts = new int[0];
+    this.positions = new int[0];
+    this.spare = new int[0];
+  }
+
+
+  /**
+   * Gets an empty match list with the given capacity from this thread's
+   * scratch arena.  Return it with {@link #release} when done.
+   * @param capacity the maximum number of matches we might find
+   * @param slop the maximum distance between normalized positions, 0 for
+   *     exact phrases
+   * @return an empty match list
+   */
+  static PhraseFilterMatchList acquire(final int capacity, final int slop) {
+    PhraseFilterMatchList list = SCRATCH.get();
+    if (list == null) {
+      list = new PhraseFilterMatchList();
+    } else {
+      SCRATCH.set(null);
+    }
+    list.reset(capacity, slop);
+    return list;
+  }
+
+
+  /**
+   * Returns a match list to this thread's scratch arena.  The list must not
+   * be used afterwards.
+   * @param list the list to return
+   */
+  static void release(final PhraseFilterMatchList list) {
+    long retained = (long) list.docIds.length
+        + list.positionStarts.length
+        + list.positionCounts.length
+        + list.positions.length
+        + list.spare.length;
+    if (retained <= MAX_RETAINED_INTS) {
+      SCRATCH.set(list);
+    }
+  }
+
 
   /**
-   * Creates a match list with the given capacity.
+   * Empties this list and makes room for the given number of matches.
    * @param capacity the maximum number of matches we might find
+   * @param slop the maximum distance between normalized positions
    */
-  PhraseFilterMatchList(final int capacity) {
-    this.docIds = new int[capacity];
-    this.positions = new PhraseFilterIntList[capacity];
+  void reset(final int capacity, final int slop) {
+    if (this.docIds.length < capacity) {
+      this.docIds = ArrayUtil.grow(this.docIds, capacity);
+      this.positionStarts = new int[this.docIds.length];
+      this.positionCounts = new int[this.docIds.length];
+    }
     this.count = 0;
+    this.positionsEnd = 0;
+    this.slop = slop;
   }
 
 
   /**
-   * Adds a match.
-   * @param docId the doc that matched
-   * @param positions the positions it matched in
+   * Adds the current doc of the given term positions as a match.
+   * @param termPositions the term positions, positioned on the doc to add
+   * @param offset the offset of the term in the phrase
+   * @throws IOException if IO problems occur within Lucene
    */
-  void add(final int docId, final PhraseFilterIntList positions) {
-    this.docIds[this.count] = docId;
-    this.positions[this.count++] = positions;
+  void add(final TermPositions termPositions, final int offset)
+      throws IOException {
+    int freq = termPositions.freq();
+    int start = this.positionsEnd;
+    int added;
+    if (this.slop == 0) {
+      if (this.positions.length < start + freq) {
+        this.positions = ArrayUtil.grow(this.positions, start + freq);
+      }
+      for (int i = 0; i < freq; i++) {
+        this.positions[start + i] = termPositions.nextPosition() - offset;
+      }
+      added = freq;
+    } else {
+      if (this.positions.length < start + 2 * freq) {
+        this.positions = ArrayUtil.grow(this.positions, start + 2 * freq);
+      }
+      added = PhraseFilterIntList.addSloppy(
+          this.positions, start, termPositions, offset, this.slop);
+    }
+    this.positionsEnd = start + added;
+
+    this.docIds[this.count] = termPositions.doc();
+    this.positionStarts[this.count] = start;
+    this.positionCounts[this.count++] = added;
   }
 
 
   /**
-   * @return array of doc ids
+   * @return a copy of the matching doc ids, exactly getCount() long
    */
-  int[] getDocIds() {
-    return this.docIds;
+  int[] copyDocIds() {
+    return Arrays.copyOf(this.docIds, this.count);
   }
 
 
@@ -67,35 +209,95 @@ final class PhraseFilterMatchList {
 
   /**
    * Intersects all doc/position pairs at the given offset with this match
-   * list.  Modifies this list in place as an optimization.
+   * list.  Modifies this list in place as an optimization: surviving
+   * positions are compacted towards the front of the flat array, which
+   * never overtakes the positions still to be read.  Sloppy intersections
+   * can grow a doc's interval list, so they write to the spare array
+   * instead and swap it in at the end.
    * @param termPositions the term positions enumerator
    * @param offset the offset of the given term in the phrase
    * @throws java.io.IOException if IO problems occur within Lucene
    */
   void intersect(final TermPositions termPositions, final int offset)
       throws IOException {
-    int currentDoc = -1;
+    intersect(termPositions, offset, -1);
+  }
+
+
+  /**
+   * Intersects all doc/position pairs at the given offset with this match
+   * list, continuing from where a previous intersection left the term
+   * positions.  The matches must all be after the docs of that previous
+   * intersection, so the term positions are never read twice for a doc.
+   * @param termPositions the term positions enumerator
+   * @param offset the offset of the given term in the phrase
+   * @param startDoc the doc the term positions are on, or -1 if they
+   *     haven't been advanced
+   * @return the doc the term positions are left on, or NO_MORE_DOCS if they
+   *     are exhausted
+   * @throws java.io.IOException if IO problems occur within Lucene
+   */
+  int intersect(final TermPositions termPositions, final int offset,
+                final int startDoc) throws IOException {
+    int currentDoc = startDoc;
     int resultCount = 0;
+    int resultEnd = 0;
     for (int i = 0; i < this.count; i++) {
       int docId = this.docIds[i];
+      if (docId - currentDoc > SKIP_THRESHOLD) {
+        // Let the skip list jump over the postings between candidates, so
+        // a rare first term intersected with a common term costs in
+        // proportion to the candidates rather than the common term.
+        if (termPositions.skipTo(docId)) {
+          currentDoc = termPositions.doc();
+        } else {
+          currentDoc = DocIdSetIterator.NO_MORE_DOCS;
+          break;
+        }
+      }
       while (currentDoc < docId) {
         if (termPositions.next()) {
           currentDoc = termPositions.doc();
         } else {
-          this.count = resultCount;
-          return;
+          currentDoc = DocIdSetIterator.NO_MORE_DOCS;
+          break;
         }
       }
+      if (currentDoc == DocIdSetIterator.NO_MORE_DOCS) {
+        break;
+      }
 
       if (currentDoc == docId) {
-        PhraseFilterIntList positions = this.positions[i];
-        if (positions.intersect(termPositions, offset)) {
+        int remaining;
+        if (this.slop == 0) {
+          remaining = PhraseFilterIntList.intersect(
+              this.positions, this.positionStarts[i], this.positionCounts[i],
+              resultEnd, termPositions, offset);
+        } else {
+          int maxRemaining = this.positionCounts[i] + 2 * termPositions.freq();
+          if (this.spare.length < resultEnd + maxRemaining) {
+            this.spare = ArrayUtil.grow(this.spare, resultEnd + maxRemaining);
+          }
+          remaining = PhraseFilterIntList.intersectSloppy(
+              this.positions, this.positionStarts[i], this.positionCounts[i],
+              this.spare, resultEnd, termPositions, offset, this.slop);
+        }
+        if (remaining != 0) {
           this.docIds[resultCount] = docId;
-          this.positions[resultCount++] = positions;
+          this.positionStarts[resultCount] = resultEnd;
+          this.positionCounts[resultCount++] = remaining;
+          resultEnd += remaining;
         }
       }
     }
     this.count = resultCount;
+    this.positionsEnd = resultEnd;
+    if (this.slop != 0) {
+      int[] intersected = this.spare;
+      this.spare = this.positions;
+      this.positions = intersected;
+    }
+    return currentDoc;
   }
 
 }
@@ -0,0 +1,199 @@
+package com.greplin.lucene.filter;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanQuery;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One position of a phrase: a single term, any of several alternative
+ * terms, or any term starting with a prefix.
+ * Only for use by PhraseFilter.
+ */
+final class PhraseFilterPosition {
+
+  /**
+   * The alternative terms, or the prefix as a single term.
+   */
+  private final Term[] terms;
+
+  /**
+   * Whether the term is a prefix to expand against each segment.
+   */
+  private final boolean prefix;
+
+
+  /**
+   * Creates a phrase position.
+   * @param terms the alternative terms, or the prefix as a single term
+   * @param prefix whether the term is a prefix
+   */
+  private PhraseFilterPosition(final Term[] terms, final boolean prefix) {
+    this.terms = terms;
+    this.prefix = prefix;
+  }
+
+
+  /**
+   * @param term the term
+   * @return a position matching only the given term
+   */
+  static PhraseFilterPosition of(final Term term) {
+    return new PhraseFilterPosition(new Term[] {term}, false);
+  }
+
+
+  /**
+   * @param terms the alternative terms
+   * @return a position matching any of the given terms
+   */
+  static PhraseFilterPosition anyOf(final Term... terms) {
+    return new PhraseFilterPosition(Arrays.copyOf(terms, terms.length), false);
+  }
+
+
+  /**
+   * @param prefix the prefix, as a term
+   * @return a position matching any term in the prefix's field that starts
+   *     with the prefix's text
+   */
+  static PhraseFilterPosition prefix(final Term prefix) {
+    return new PhraseFilterPosition(new Term[] {prefix}, true);
+  }
+
+
+  /**
+   * @param terms the terms
+   * @return positions matching each of the given terms, in order
+   */
+  static PhraseFilterPosition[] of(final Term... terms) {
+    PhraseFilterPosition[] positions = new PhraseFilterPosition[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      positions[i] = of(terms[i]);
+    }
+    return positions;
+  }
+
+
+  /**
+   * @return the term, if this position matches exactly one term, else null
+   */
+  @Nullable
+  Term getSingleTerm() {
+    return this.prefix || this.terms.length != 1 ? null : this.terms[0];
+  }
+
+
+  /**
+   * Gets the terms that can occur at this position in the given reader.
+   * @param reader the segment reader
+   * @param maxExpansions the maximum number of terms a prefix may expand to
+   * @return the terms, possibly none
+   * @throws IOException if IO problems occur within Lucene
+   * @throws BooleanQuery.TooManyClauses if a prefix expands to more than
+   *     maxExpansions terms
+   */
+  Term[] resolve(final IndexReader reader, final int maxExpansions)
+      throws IOException {
+    if (!this.prefix) {
+      return this.terms;
+    }
+
+    Term prefixTerm = this.terms[0];
+    List<Term> result = Lists.newArrayList();
+    TermEnum termEnum = reader.terms(prefixTerm);
+    try {
+      do {
+        Term term = termEnum.term();
+
+        // OK to compare interned strings with !=
+        // noinspection StringEquality
+        if (term == null
+            || term.field() != prefixTerm.field()
+            || !term.text().startsWith(prefixTerm.text())) {
+          break;
+        }
+        if (result.size() == maxExpansions) {
+          throw new BooleanQuery.TooManyClauses();
+        }
+        result.add(term);
+      } while (termEnum.next());
+    } finally {
+      termEnum.close();
+    }
+    return result.toArray(new Term[result.size()]);
+  }
+
+
+  /**
+   * @param other another position
+   * @return whether some term could occur at both positions
+   */
+  boolean overlaps(final PhraseFilterPosition other) {
+    if (this.prefix && other.prefix) {
+      return startsWith(this.terms[0], other.terms[0])
+          || startsWith(other.terms[0], this.terms[0]);
+    } else if (other.prefix) {
+      return other.overlaps(this);
+    }
+    for (Term term : other.terms) {
+      for (Term candidate : this.terms) {
+        if (this.prefix ? startsWith(term, candidate) : term.equals(candidate)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * @param term a term
+   * @param prefix a prefix, as a term
+   * @return whether the term is in the prefix's field and starts with it
+   */
+  private static boolean startsWith(final Term term, final Term prefix) {
+    return term.field().equals(prefix.field())
+        && term.text().startsWith(prefix.text());
+  }
+
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    PhraseFilterPosition that = (PhraseFilterPosition) o;
+    return this.prefix == that.prefix && Arrays.equals(this.terms, that.terms);
+  }
+
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(this.terms) + (this.prefix ? 1 : 0);
+  }
+
+
+  @Override
+  public String toString() {
+    if (this.prefix) {
+      return this.terms[0] + "*";
+    } else if (this.terms.length == 1) {
+      return this.terms[0].toString();
+    } else {
+      return "(" + Joiner.on('|').join(this.terms) + ")";
+    }
+  }
+
+}
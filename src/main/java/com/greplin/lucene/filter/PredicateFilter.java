@@ -45,9 +45,12 @@ public class PredicateFilter extends Filter {
 
   @Override
   public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
-    return new PredicateDocIdSet(
-        this.filter.getDocIdSet(reader),
-        this.predicate.get(reader));
+    DocIdSet docIdSet = this.filter.getDocIdSet(reader);
+    DocIdSet predicateDocIdSet = this.predicate.getDocIdSet(reader);
+    if (predicateDocIdSet != null) {
+      return PredicateDocIdSet.intersection(docIdSet, predicateDocIdSet);
+    }
+    return new PredicateDocIdSet(docIdSet, this.predicate.get(reader));
   }
 
 
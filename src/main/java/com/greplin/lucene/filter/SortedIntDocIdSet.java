@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+
+/**
+ * DocId set based on a sorted array of distinct integers.
+ * The integer array is not defensively copied - so don't modify it!
+ *
+ * Iterators advance with an exponential search followed by a binary search,
+ * so advancing by a small distance costs about the same as nextDoc() while
+ * advancing far through a large array costs O(log(distance)).
+ */
+public class SortedIntDocIdSet extends DocIdSet {
+
+  /**
+   * The sorted array of integers.
+   */
+  private final int[] ints;
+
+  /**
+   * The number of integers in the array that belong to the set.
+   */
+  private final int size;
+
+
+  /**
+   * Constructs a new doc id set.
+   * @param ints sorted array of distinct integers
+   */
+  public SortedIntDocIdSet(final int[] ints) {
+    this(ints, ints.length);
+  }
+
+
+  /**
+   * Constructs a new doc id set from a prefix of an array.
+   * @param ints array of distinct integers, sorted up to size
+   * @param size the number of integers to use from the front of the array
+   */
+  public SortedIntDocIdSet(final int[] ints, final int size) {
+    assert size >= 0 && size <= ints.length;
+    this.ints = ints;
+    this.size = size;
+  }
+
+
+  /**
+   * @return the number of documents in the set
+   */
+  public int size() {
+    return this.size;
+  }
+
+
+  @Override
+  public DocIdSetIterator iterator() throws IOException {
+    return new Iterator(this.ints, this.size);
+  }
+
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+
+  /**
+   * Iterator for a sorted integer array.
+   */
+  private static final class Iterator extends DocIdSetIterator {
+
+    /**
+     * The list of integers.
+     */
+    private final int[] ints;
+
+    /**
+     * The number of integers to iterate.
+     */
+    private final int size;
+
+    /**
+     * The active index.
+     */
+    private int index = -1;
+
+    /**
+     * The current document.
+     */
+    private int doc = -1;
+
+
+    /**
+     * Constructs an iterator over a sorted integer array.
+     * @param ints the array of integers
+     * @param size the number of integers to iterate
+     */
+    private Iterator(final int[] ints, final int size) {
+      this.ints = ints;
+      this.size = size;
+    }
+
+
+    @Override
+    public int docID() {
+      return this.doc;
+    }
+
+
+    @Override
+    public int nextDoc() {
+      if (++this.index < this.size) {
+        this.doc = this.ints[this.index];
+      } else {
+        this.index = this.size;
+        this.doc = NO_MORE_DOCS;
+      }
+      return this.doc;
+    }
+
+
+    @Override
+    public int advance(final int target) {
+      int low = this.index + 1;
+      if (low >= this.size) {
+        this.index = this.size;
+        this.doc = NO_MORE_DOCS;
+        return this.doc;
+      }
+
+      // Gallop ahead until we pass the target, so the distance advanced
+      // rather than the array length bounds the search.
+      int high = low;
+      int step = 1;
+      while (this.ints[high] < target) {
+        low = high + 1;
+        high += step;
+        step <<= 1;
+        if (high >= this.size) {
+          high = this.size - 1;
+          if (this.ints[high] < target) {
+            this.index = this.size;
+            this.doc = NO_MORE_DOCS;
+            return this.doc;
+          }
+          break;
+        }
+      }
+
+      // Binary search for the first value >= target within [low, high].
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (this.ints[mid] < target) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+
+      this.index = low;
+      this.doc = this.ints[low];
+      return this.doc;
+    }
+
+  }
+
+}
@@ -5,8 +5,10 @@
 package com.greplin.lucene.predicate;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.util.Bits;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 
 /**
@@ -23,6 +25,21 @@ public abstract class BitsProvider {
   public abstract Bits get(IndexReader reader) throws IOException;
 
 
+  /**
+   * Gets the matching documents for the given IndexReader as an iterable
+   * set, so that a sparse predicate can lead an intersection instead of
+   * being probed for every candidate document.
+   * @param reader the reader.
+   * @return the matching documents, or null if they can only be probed
+   *     through {@link #get(IndexReader)}.
+   * @throws IOException if IO issues occur.
+   */
+  @Nullable
+  public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+    return null;
+  }
+
+
   /**
    * Get the object whose identity (not hashCode/equals) will be used for
    * keying caches with this bits provider.
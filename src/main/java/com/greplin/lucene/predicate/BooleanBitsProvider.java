@@ -8,7 +8,9 @@ import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
 import java.util.List;
@@ -24,6 +26,12 @@ public class BooleanBitsProvider extends BitsProvider {
   private final List<Clause<BitsProvider>> clauses;
 
 
+  /**
+   * Whether to materialize results into a bit set when possible.
+   */
+  private boolean materialize;
+
+
   /**
    * Creates a new BooleanBitsProvider.
    */
@@ -43,13 +51,44 @@ public class BooleanBitsProvider extends BitsProvider {
   }
 
 
+  /**
+   * Sets whether to materialize each segment's result into a single bit set
+   * when every clause is a bit set.  That costs maxDoc / 8 bytes per
+   * segment, but makes each lookup a single array read instead of a walk
+   * over the clauses.
+   * @param materialize whether to materialize results.
+   */
+  public void setMaterialize(final boolean materialize) {
+    this.materialize = materialize;
+  }
+
+
   @Override
   public Bits get(final IndexReader reader) throws IOException {
     BooleanPredicate result = new BooleanPredicate();
     for (Clause<BitsProvider> clause : this.clauses) {
       result.add(clause.getValue().get(reader), clause.getOccur());
     }
-    return result;
+    Bits optimized = result.optimize();
+    if (this.materialize && optimized instanceof BooleanPredicate) {
+      FixedBitSet materialized =
+          ((BooleanPredicate) optimized).materialize(reader.maxDoc());
+      if (materialized != null) {
+        return materialized;
+      }
+    }
+    return optimized;
+  }
+
+
+  @Override
+  public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+    // A lone required clause matches exactly what its provider matches.
+    if (this.clauses.size() == 1
+        && this.clauses.get(0).getOccur() == BooleanClause.Occur.MUST) {
+      return this.clauses.get(0).getValue().getDocIdSet(reader);
+    }
+    return null;
   }
 
 
@@ -74,7 +113,10 @@ public class BooleanBitsProvider extends BitsProvider {
 
   @Override
   public String toString() {
-    return Objects.toStringHelper(this).add("clauses", this.clauses).toString();
+    return Objects.toStringHelper(this)
+        .add("clauses", this.clauses)
+        .add("materialize", this.materialize)
+        .toString();
   }
 
 
@@ -138,6 +180,16 @@ public class BooleanBitsProvider extends BitsProvider {
     }
 
 
+    /**
+     * Materialize results into a bit set when every clause is a bit set.
+     * @return this builder, for chaining
+     */
+    public Builder materialize() {
+      this.bitsProvider.setMaterialize(true);
+      return this;
+    }
+
+
     /**
      * @return the constructed bits provider
      */
@@ -8,7 +8,11 @@ import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -62,6 +66,30 @@ public class BooleanPredicate implements Bits {
   }
 
 
+  /**
+   * @return the bits that must match.
+   */
+  List<Bits> getMust() {
+    return this.must;
+  }
+
+
+  /**
+   * @return the bits that must not match.
+   */
+  List<Bits> getMustNot() {
+    return this.mustNot;
+  }
+
+
+  /**
+   * @return the bits of which at least one should match.
+   */
+  List<Bits> getShould() {
+    return this.should;
+  }
+
+
   @Override
   public boolean get(final int index) {
     for (Bits bits : this.must) {
@@ -89,6 +117,277 @@ public class BooleanPredicate implements Bits {
   }
 
 
+  /**
+   * Returns an equivalent predicate that is cheaper to evaluate.  Nested
+   * boolean predicates are flattened where that doesn't change the result,
+   * negated must and must not clauses swap kinds, constant clauses are
+   * folded away, and within each kind of clause the ones most likely to
+   * decide the result are checked first.  Clauses of unknown density keep
+   * their relative order after the others.
+   * @return the optimized predicate, which may not be a BooleanPredicate
+   */
+  public Bits optimize() {
+    BooleanPredicate result = new BooleanPredicate();
+
+    for (Bits bits : this.must) {
+      if (!result.addMust(optimize(bits))) {
+        return Predicates.NONE_BITS;
+      }
+    }
+
+    for (Bits bits : this.mustNot) {
+      if (!result.addMustNot(optimize(bits))) {
+        return Predicates.NONE_BITS;
+      }
+    }
+
+    boolean shouldMatchesAll = false;
+    for (Bits bits : this.should) {
+      Bits clause = optimize(bits);
+      if (Selectivity.matchesAll(clause)) {
+        shouldMatchesAll = true;
+      } else if (isDisjunction(clause)) {
+        result.should.addAll(((BooleanPredicate) clause).should);
+      } else if (!Selectivity.matchesNone(clause)) {
+        result.should.add(clause);
+      }
+    }
+    if (shouldMatchesAll) {
+      result.should.clear();
+    } else if (!this.should.isEmpty() && result.should.isEmpty()) {
+      return Predicates.NONE_BITS;
+    }
+
+    // Stable sorts, so equally selective clauses keep their order.
+    Selectivity.sortSparsestFirst(result.must);
+    Selectivity.sortDensestFirst(result.mustNot);
+    Selectivity.sortDensestFirst(result.should);
+
+    int clauses =
+        result.must.size() + result.mustNot.size() + result.should.size();
+    if (clauses == 0) {
+      return Predicates.ALL_BITS;
+    } else if (clauses == 1 && result.mustNot.isEmpty()) {
+      return result.must.isEmpty() ? result.should.get(0) : result.must.get(0);
+    }
+    return result;
+  }
+
+
+  /**
+   * Evaluates this predicate for every document at once, a word at a time.
+   * Only possible when every clause is a FixedBitSet, an OpenBitSet, or a
+   * boolean predicate that can itself be materialized.
+   * @param maxDoc the number of documents to evaluate
+   * @return the matching documents, or null if some clause isn't a bit set
+   */
+  @Nullable
+  public FixedBitSet materialize(final int maxDoc) {
+    if (!canMaterialize(this)) {
+      return null;
+    }
+
+    FixedBitSet result = new FixedBitSet(maxDoc);
+    long[] words = result.getBits();
+    if (this.must.isEmpty()) {
+      result.set(0, maxDoc);
+    } else {
+      or(words, this.must.get(0), maxDoc);
+      for (Bits bits : this.must.subList(1, this.must.size())) {
+        and(words, bits, maxDoc);
+      }
+    }
+
+    for (Bits bits : this.mustNot) {
+      andNot(words, bits, maxDoc);
+    }
+
+    if (!this.should.isEmpty()) {
+      FixedBitSet any = new FixedBitSet(maxDoc);
+      for (Bits bits : this.should) {
+        or(any.getBits(), bits, maxDoc);
+      }
+      result.and(any);
+    }
+
+    // Don't let bit sets longer than maxDoc leave bits past the end.
+    int extra = maxDoc & (Long.SIZE - 1);
+    if (extra != 0) {
+      words[words.length - 1] &= (1L << extra) - 1;
+    }
+    return result;
+  }
+
+
+  /**
+   * @param bits some bits
+   * @return whether the bits are a bit set or a boolean predicate of them
+   */
+  private static boolean canMaterialize(final Bits bits) {
+    if (bits instanceof FixedBitSet || bits instanceof OpenBitSet) {
+      return true;
+    } else if (!(bits instanceof BooleanPredicate)) {
+      return false;
+    }
+    BooleanPredicate predicate = (BooleanPredicate) bits;
+    for (Bits clause : predicate.must) {
+      if (!canMaterialize(clause)) {
+        return false;
+      }
+    }
+    for (Bits clause : predicate.mustNot) {
+      if (!canMaterialize(clause)) {
+        return false;
+      }
+    }
+    for (Bits clause : predicate.should) {
+      if (!canMaterialize(clause)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * @param bits a materializable clause
+   * @param maxDoc the number of documents
+   * @return the words of the clause's bits
+   */
+  private static long[] words(final Bits bits, final int maxDoc) {
+    if (bits instanceof FixedBitSet) {
+      return ((FixedBitSet) bits).getBits();
+    } else if (bits instanceof OpenBitSet) {
+      return ((OpenBitSet) bits).getBits();
+    } else {
+      return ((BooleanPredicate) bits).materialize(maxDoc).getBits();
+    }
+  }
+
+
+  /**
+   * ORs a clause into the target words.
+   * @param target the target words
+   * @param bits a materializable clause
+   * @param maxDoc the number of documents
+   */
+  private static void or(
+      final long[] target, final Bits bits, final int maxDoc) {
+    long[] words = words(bits, maxDoc);
+    int common = Math.min(target.length, words.length);
+    for (int i = 0; i < common; i++) {
+      target[i] |= words[i];
+    }
+  }
+
+
+  /**
+   * ANDs a clause into the target words.
+   * @param target the target words
+   * @param bits a materializable clause
+   * @param maxDoc the number of documents
+   */
+  private static void and(
+      final long[] target, final Bits bits, final int maxDoc) {
+    long[] words = words(bits, maxDoc);
+    int common = Math.min(target.length, words.length);
+    for (int i = 0; i < common; i++) {
+      target[i] &= words[i];
+    }
+    Arrays.fill(target, common, target.length, 0L);
+  }
+
+
+  /**
+   * Clears the target words wherever a clause is set.
+   * @param target the target words
+   * @param bits a materializable clause
+   * @param maxDoc the number of documents
+   */
+  private static void andNot(
+      final long[] target, final Bits bits, final int maxDoc) {
+    long[] words = words(bits, maxDoc);
+    int common = Math.min(target.length, words.length);
+    for (int i = 0; i < common; i++) {
+      target[i] &= ~words[i];
+    }
+  }
+
+
+  /**
+   * Adds an optimized clause that must match, flattening it if possible.
+   * @param clause the clause
+   * @return false if the clause can't match, so neither can the predicate
+   */
+  private boolean addMust(final Bits clause) {
+    if (Selectivity.matchesNone(clause)) {
+      return false;
+    } else if (clause instanceof Predicates.InverseBits) {
+      return addMustNot(
+          optimize(((Predicates.InverseBits) clause).getOriginal()));
+    } else if (isConjunction(clause)) {
+      this.must.addAll(((BooleanPredicate) clause).must);
+      this.mustNot.addAll(((BooleanPredicate) clause).mustNot);
+    } else if (!Selectivity.matchesAll(clause)) {
+      this.must.add(clause);
+    }
+    return true;
+  }
+
+
+  /**
+   * Adds an optimized clause that must not match, flattening it if possible.
+   * @param clause the clause
+   * @return false if the clause always matches, so the predicate can't
+   */
+  private boolean addMustNot(final Bits clause) {
+    if (Selectivity.matchesAll(clause)) {
+      return false;
+    } else if (clause instanceof Predicates.InverseBits) {
+      return addMust(
+          optimize(((Predicates.InverseBits) clause).getOriginal()));
+    } else if (isDisjunction(clause)) {
+      this.mustNot.addAll(((BooleanPredicate) clause).should);
+    } else if (!Selectivity.matchesNone(clause)) {
+      this.mustNot.add(clause);
+    }
+    return true;
+  }
+
+
+  /**
+   * @param bits the bits to optimize
+   * @return the optimized bits if they are a boolean predicate, otherwise
+   *     the bits themselves
+   */
+  private static Bits optimize(final Bits bits) {
+    return bits instanceof BooleanPredicate
+        ? ((BooleanPredicate) bits).optimize()
+        : bits;
+  }
+
+
+  /**
+   * @param bits some bits
+   * @return whether the bits are a boolean predicate without should clauses
+   */
+  private static boolean isConjunction(final Bits bits) {
+    return bits instanceof BooleanPredicate
+        && ((BooleanPredicate) bits).should.isEmpty();
+  }
+
+
+  /**
+   * @param bits some bits
+   * @return whether the bits are a boolean predicate with only should clauses
+   */
+  private static boolean isDisjunction(final Bits bits) {
+    return bits instanceof BooleanPredicate
+        && ((BooleanPredicate) bits).must.isEmpty()
+        && ((BooleanPredicate) bits).mustNot.isEmpty();
+  }
+
+
   @Override
   public boolean equals(final Object o) {
     if (this == o) {
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.predicate;
+
+import com.google.common.collect.Lists;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.util.List;
+
+/**
+ * A predicate tree compiled into one flat evaluator.
+ *
+ * Interpreting a tree of boolean predicates, negations and bit sets costs
+ * several megamorphic Bits.get calls per document, which the JIT can't
+ * inline across.  Compiling flattens the optimized tree into arrays: bit
+ * set leaves become raw long[] words tested inline, negations are folded
+ * into the opposite kind of clause, nested boolean predicates become
+ * nested CompiledPredicates (a single, inlinable receiver type), and only
+ * opaque leaves are still called through Bits, after everything else.
+ */
+public final class CompiledPredicate extends Predicate {
+
+  /**
+   * Shift from a document to the index of the word holding its bit.
+   */
+  private static final int WORD_SHIFT = 6;
+
+  /**
+   * Words of bit sets that must match.
+   */
+  private final long[][] mustWords;
+
+  /**
+   * Words of bit sets that must not match.
+   */
+  private final long[][] mustNotWords;
+
+  /**
+   * Words of bit sets of which at least one should match.
+   */
+  private final long[][] shouldWords;
+
+  /**
+   * Nested predicates that must match.
+   */
+  private final CompiledPredicate[] mustNested;
+
+  /**
+   * Nested predicates that must not match.
+   */
+  private final CompiledPredicate[] mustNotNested;
+
+  /**
+   * Nested predicates of which at least one should match.
+   */
+  private final CompiledPredicate[] shouldNested;
+
+  /**
+   * Other bits that must match.
+   */
+  private final Bits[] mustOther;
+
+  /**
+   * Other bits that must not match.
+   */
+  private final Bits[] mustNotOther;
+
+  /**
+   * Other bits of which at least one should match.
+   */
+  private final Bits[] shouldOther;
+
+  /**
+   * Whether there are any should clauses.
+   */
+  private final boolean hasShould;
+
+
+  /**
+   * Creates a compiled predicate from grouped clauses.
+   * @param must clauses that must match.
+   * @param mustNot clauses that must not match.
+   * @param should clauses of which at least one should match.
+   */
+  private CompiledPredicate(final Group must,
+                            final Group mustNot,
+                            final Group should) {
+    this.mustWords = must.words.toArray(new long[must.words.size()][]);
+    this.mustNotWords =
+        mustNot.words.toArray(new long[mustNot.words.size()][]);
+    this.shouldWords = should.words.toArray(new long[should.words.size()][]);
+    this.mustNested =
+        must.nested.toArray(new CompiledPredicate[must.nested.size()]);
+    this.mustNotNested =
+        mustNot.nested.toArray(new CompiledPredicate[mustNot.nested.size()]);
+    this.shouldNested =
+        should.nested.toArray(new CompiledPredicate[should.nested.size()]);
+    this.mustOther = must.other.toArray(new Bits[must.other.size()]);
+    this.mustNotOther = mustNot.other.toArray(new Bits[mustNot.other.size()]);
+    this.shouldOther = should.other.toArray(new Bits[should.other.size()]);
+    this.hasShould = !should.isEmpty();
+  }
+
+
+  /**
+   * Compiles a predicate.  Bits that are already a single lookup, such as
+   * bit sets and constants, are returned as is.
+   * @param bits the predicate to compile.
+   * @return an equivalent, flat predicate.
+   */
+  public static Bits compile(final Bits bits) {
+    if (bits instanceof Predicates.InverseBits) {
+      Group must = new Group();
+      Group mustNot = new Group();
+      add(((Predicates.InverseBits) bits).getOriginal(), mustNot, must);
+      return new CompiledPredicate(must, mustNot, new Group());
+    } else if (!(bits instanceof BooleanPredicate)) {
+      return bits;
+    }
+
+    Bits optimized = ((BooleanPredicate) bits).optimize();
+    if (!(optimized instanceof BooleanPredicate)) {
+      return compile(optimized);
+    }
+
+    BooleanPredicate predicate = (BooleanPredicate) optimized;
+    Group must = new Group();
+    Group mustNot = new Group();
+    Group should = new Group();
+    for (Bits clause : predicate.getMust()) {
+      add(clause, must, mustNot);
+    }
+    for (Bits clause : predicate.getMustNot()) {
+      add(clause, mustNot, must);
+    }
+    for (Bits clause : predicate.getShould()) {
+      add(clause, should, null);
+    }
+    return new CompiledPredicate(must, mustNot, should);
+  }
+
+
+  /**
+   * Adds a clause to the group it belongs in.
+   * @param clause the clause.
+   * @param group the group of the clause.
+   * @param opposite the group a negation of the clause can be moved to, or
+   *     null if negations can't be moved.
+   */
+  private static void add(
+      final Bits clause, final Group group, final Group opposite) {
+    if (opposite != null && clause instanceof Predicates.InverseBits) {
+      add(((Predicates.InverseBits) clause).getOriginal(), opposite, group);
+    } else if (clause instanceof FixedBitSet) {
+      group.words.add(((FixedBitSet) clause).getBits());
+    } else if (clause instanceof OpenBitSet) {
+      group.words.add(((OpenBitSet) clause).getBits());
+    } else {
+      Bits compiled = compile(clause);
+      if (compiled instanceof CompiledPredicate) {
+        group.nested.add((CompiledPredicate) compiled);
+      } else if (compiled != clause) {
+        add(compiled, group, opposite);
+      } else {
+        group.other.add(compiled);
+      }
+    }
+  }
+
+
+  @Override
+  public boolean get(final int index) {
+    final int word = index >> WORD_SHIFT;
+    final long bit = 1L << index;
+
+    for (long[] words : this.mustWords) {
+      if (word >= words.length || (words[word] & bit) == 0) {
+        return false;
+      }
+    }
+    for (long[] words : this.mustNotWords) {
+      if (word < words.length && (words[word] & bit) != 0) {
+        return false;
+      }
+    }
+    for (CompiledPredicate nested : this.mustNested) {
+      if (!nested.get(index)) {
+        return false;
+      }
+    }
+    for (CompiledPredicate nested : this.mustNotNested) {
+      if (nested.get(index)) {
+        return false;
+      }
+    }
+    for (Bits other : this.mustOther) {
+      if (!other.get(index)) {
+        return false;
+      }
+    }
+    for (Bits other : this.mustNotOther) {
+      if (other.get(index)) {
+        return false;
+      }
+    }
+
+    if (!this.hasShould) {
+      return true;
+    }
+    for (long[] words : this.shouldWords) {
+      if (word < words.length && (words[word] & bit) != 0) {
+        return true;
+      }
+    }
+    for (CompiledPredicate nested : this.shouldNested) {
+      if (nested.get(index)) {
+        return true;
+      }
+    }
+    for (Bits other : this.shouldOther) {
+      if (other.get(index)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Clauses of one kind, by how they are evaluated.
+   */
+  private static final class Group {
+
+    /**
+     * Words of bit set clauses.
+     */
+    private final List<long[]> words = Lists.newArrayList();
+
+    /**
+     * Compiled nested clauses.
+     */
+    private final List<CompiledPredicate> nested = Lists.newArrayList();
+
+    /**
+     * Other clauses.
+     */
+    private final List<Bits> other = Lists.newArrayList();
+
+
+    /**
+     * @return whether the group has no clauses.
+     */
+    private boolean isEmpty() {
+      return this.words.isEmpty() && this.nested.isEmpty()
+          && this.other.isEmpty();
+    }
+
+  }
+
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.predicate;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.Ints;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Predicates on single-valued, indexed field values, read from the
+ * FieldCache.  Each lookup is a direct array read, and nothing is allocated
+ * per segment beyond what the FieldCache already holds, so these are much
+ * cheaper than building a range or terms filter's bit set.  The exception
+ * is string sets, which keep one bit per distinct value of the field for
+ * each segment, computed once and held as long as the FieldCache entry.
+ *
+ * Documents without a value never match.  The FieldCache reads them as 0
+ * for numeric fields, so numeric predicates that would match 0 also check
+ * the FieldCache's record of which documents have a value.
+ */
+public final class FieldPredicates {
+
+  /** Not instantiable. */
+  private FieldPredicates() { }
+
+
+  /**
+   * Gets the documents that have a value for a numeric field, if a missing
+   * value would otherwise match.
+   * @param reader the segment reader
+   * @param field the field
+   * @param matchesZero whether the predicate matches 0, which is what the
+   *     FieldCache reads for documents without a value
+   * @return the documents with a value, or null if every document's value
+   *     can be used as read
+   * @throws IOException if IO issues occur
+   */
+  @Nullable
+  private static Bits docsWithField(final IndexReader reader,
+                                    final String field,
+                                    final boolean matchesZero)
+      throws IOException {
+    if (!matchesZero) {
+      return null;
+    }
+    Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+    return docsWithField instanceof Bits.MatchAllBits ? null : docsWithField;
+  }
+
+
+  /**
+   * Matches documents whose int field value is within a range.
+   * @param field the field, which must hold int values
+   * @param lower the inclusive lower bound
+   * @param upper the inclusive upper bound
+   * @return the predicate
+   */
+  public static BitsProvider intRange(
+      final String field, final int lower, final int upper) {
+    return new IntRange(field, lower, upper);
+  }
+
+
+  /**
+   * Matches documents whose int field value is at least the given value.
+   * @param field the field, which must hold int values
+   * @param lower the inclusive lower bound
+   * @return the predicate
+   */
+  public static BitsProvider intAtLeast(final String field, final int lower) {
+    return intRange(field, lower, Integer.MAX_VALUE);
+  }
+
+
+  /**
+   * Matches documents whose int field value is at most the given value.
+   * @param field the field, which must hold int values
+   * @param upper the inclusive upper bound
+   * @return the predicate
+   */
+  public static BitsProvider intAtMost(final String field, final int upper) {
+    return intRange(field, Integer.MIN_VALUE, upper);
+  }
+
+
+  /**
+   * Matches documents whose long field value is within a range.
+   * @param field the field, which must hold long values
+   * @param lower the inclusive lower bound
+   * @param upper the inclusive upper bound
+   * @return the predicate
+   */
+  public static BitsProvider longRange(
+      final String field, final long lower, final long upper) {
+    return new LongRange(field, lower, upper);
+  }
+
+
+  /**
+   * Matches documents whose long field value is at least the given value.
+   * @param field the field, which must hold long values
+   * @param lower the inclusive lower bound
+   * @return the predicate
+   */
+  public static BitsProvider longAtLeast(
+      final String field, final long lower) {
+    return longRange(field, lower, Long.MAX_VALUE);
+  }
+
+
+  /**
+   * Matches documents whose long field value is at most the given value.
+   * @param field the field, which must hold long values
+   * @param upper the inclusive upper bound
+   * @return the predicate
+   */
+  public static BitsProvider longAtMost(final String field, final long upper) {
+    return longRange(field, Long.MIN_VALUE, upper);
+  }
+
+
+  /**
+   * Matches documents whose int field value is one of the given values.
+   * @param field the field, which must hold int values
+   * @param values the values to match
+   * @return the predicate
+   */
+  public static BitsProvider intIn(final String field, final int... values) {
+    return new IntIn(field, values);
+  }
+
+
+  /**
+   * Matches documents whose string field value is one of the given values.
+   * The field must have at most one term per document.
+   * @param field the field
+   * @param values the values to match
+   * @return the predicate
+   */
+  public static BitsProvider stringIn(
+      final String field, final String... values) {
+    return new StringIn(field, values);
+  }
+
+
+  /**
+   * Matches int field values within a range.
+   */
+  private static final class IntRange extends BitsProvider {
+
+    /**
+     * The field.
+     */
+    private final String field;
+
+    /**
+     * The inclusive lower bound.
+     */
+    private final int lower;
+
+    /**
+     * The inclusive upper bound.
+     */
+    private final int upper;
+
+
+    /**
+     * Creates an int range predicate.
+     * @param field the field
+     * @param lower the inclusive lower bound
+     * @param upper the inclusive upper bound
+     */
+    private IntRange(final String field, final int lower, final int upper) {
+      this.field = field;
+      this.lower = lower;
+      this.upper = upper;
+    }
+
+
+    @Override
+    public Bits get(final IndexReader reader) throws IOException {
+      final int[] values = FieldCache.DEFAULT.getInts(reader, this.field);
+      final int min = this.lower;
+      final int max = this.upper;
+      final Bits docsWithField =
+          docsWithField(reader, this.field, min <= 0 && max >= 0);
+      return new Bits() {
+        @Override
+        public boolean get(final int index) {
+          int value = values[index];
+          return value >= min && value <= max
+              && (docsWithField == null || docsWithField.get(index));
+        }
+
+        @Override
+        public int length() {
+          return values.length;
+        }
+      };
+    }
+
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      IntRange that = (IntRange) o;
+      return this.field.equals(that.field)
+          && this.lower == that.lower
+          && this.upper == that.upper;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(this.field, this.lower, this.upper);
+    }
+
+
+    @Override
+    public String toString() {
+      return this.field + ":[" + this.lower + " TO " + this.upper + "]";
+    }
+
+  }
+
+
+  /**
+   * Matches long field values within a range.
+   */
+  private static final class LongRange extends BitsProvider {
+
+    /**
+     * The field.
+     */
+    private final String field;
+
+    /**
+     * The inclusive lower bound.
+     */
+    private final long lower;
+
+    /**
+     * The inclusive upper bound.
+     */
+    private final long upper;
+
+
+    /**
+     * Creates a long range predicate.
+     * @param field the field
+     * @param lower the inclusive lower bound
+     * @param upper the inclusive upper bound
+     */
+    private LongRange(final String field, final long lower, final long upper) {
+      this.field = field;
+      this.lower = lower;
+      this.upper = upper;
+    }
+
+
+    @Override
+    public Bits get(final IndexReader reader) throws IOException {
+      final long[] values = FieldCache.DEFAULT.getLongs(reader, this.field);
+      final long min = this.lower;
+      final long max = this.upper;
+      final Bits docsWithField =
+          docsWithField(reader, this.field, min <= 0 && max >= 0);
+      return new Bits() {
+        @Override
+        public boolean get(final int index) {
+          long value = values[index];
+          return value >= min && value <= max
+              && (docsWithField == null || docsWithField.get(index));
+        }
+
+        @Override
+        public int length() {
+          return values.length;
+        }
+      };
+    }
+
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      LongRange that = (LongRange) o;
+      return this.field.equals(that.field)
+          && this.lower == that.lower
+          && this.upper == that.upper;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(this.field, this.lower, this.upper);
+    }
+
+
+    @Override
+    public String toString() {
+      return this.field + ":[" + this.lower + " TO " + this.upper + "]";
+    }
+
+  }
+
+
+  /**
+   * Matches int field values in a set.
+   */
+  private static final class IntIn extends BitsProvider {
+
+    /**
+     * The field.
+     */
+    private final String field;
+
+    /**
+     * The sorted, distinct values to match.
+     */
+    private final int[] values;
+
+
+    /**
+     * Creates an int set predicate.
+     * @param field the field
+     * @param values the values to match
+     */
+    private IntIn(final String field, final int[] values) {
+      this.field = field;
+      this.values = values.clone();
+      Arrays.sort(this.values);
+    }
+
+
+    @Override
+    public Bits get(final IndexReader reader) throws IOException {
+      final int[] docValues = FieldCache.DEFAULT.getInts(reader, this.field);
+      final int[] matches = this.values;
+      final Bits docsWithField = docsWithField(
+          reader, this.field, Arrays.binarySearch(matches, 0) >= 0);
+      return new Bits() {
+        @Override
+        public boolean get(final int index) {
+          return Arrays.binarySearch(matches, docValues[index]) >= 0
+              && (docsWithField == null || docsWithField.get(index));
+        }
+
+        @Override
+        public int length() {
+          return docValues.length;
+        }
+      };
+    }
+
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      IntIn that = (IntIn) o;
+      return this.field.equals(that.field)
+          && Arrays.equals(this.values, that.values);
+    }
+
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(this.field, Arrays.hashCode(this.values));
+    }
+
+
+    @Override
+    public String toString() {
+      return this.field + ":{" + Joiner.on(", ").join(Ints.asList(this.values))
+          + "}";
+    }
+
+  }
+
+
+  /**
+   * Matches string field values in a set, by comparing term ordinals.
+   */
+  private static final class StringIn extends BitsProvider {
+
+    /**
+     * The field.
+     */
+    private final String field;
+
+    /**
+     * The sorted, distinct values to match.
+     */
+    private final String[] values;
+
+    /**
+     * The ordinals to match, per string index.  Weakly keyed, so entries
+     * go away along with the FieldCache's entry for the segment.
+     */
+    private final LoadingCache<FieldCache.StringIndex, FixedBitSet> ords =
+        CacheBuilder.newBuilder().weakKeys().build(
+            new CacheLoader<FieldCache.StringIndex, FixedBitSet>() {
+              @Override
+              public FixedBitSet load(final FieldCache.StringIndex index) {
+                return findOrds(index);
+              }
+            });
+
+
+    /**
+     * Creates a string set predicate.
+     * @param field the field
+     * @param values the values to match
+     */
+    private StringIn(final String field, final String[] values) {
+      this.field = field;
+      this.values = values.clone();
+      Arrays.sort(this.values);
+    }
+
+
+    /**
+     * Finds the ordinals of the values in a string index.
+     * @param index the string index
+     * @return the ordinals to match
+     */
+    private FixedBitSet findOrds(final FieldCache.StringIndex index) {
+      // Ordinal 0 means no value, so it is never set.
+      FixedBitSet ords = new FixedBitSet(index.lookup.length);
+      for (String value : this.values) {
+        int ord = index.binarySearchLookup(value);
+        if (ord > 0) {
+          ords.set(ord);
+        }
+      }
+      return ords;
+    }
+
+
+    @Override
+    public Bits get(final IndexReader reader) throws IOException {
+      final FieldCache.StringIndex index =
+          FieldCache.DEFAULT.getStringIndex(reader, this.field);
+      final FixedBitSet ords = this.ords.getUnchecked(index);
+
+      final int[] order = index.order;
+      return new Bits() {
+        @Override
+        public boolean get(final int doc) {
+          return ords.get(order[doc]);
+        }
+
+        @Override
+        public int length() {
+          return order.length;
+        }
+      };
+    }
+
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      StringIn that = (StringIn) o;
+      return this.field.equals(that.field)
+          && Arrays.equals(this.values, that.values);
+    }
+
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(this.field, Arrays.hashCode(this.values));
+    }
+
+
+    @Override
+    public String toString() {
+      return this.field + ":{" + Joiner.on(", ").join(this.values) + "}";
+    }
+
+  }
+
+}
@@ -4,14 +4,21 @@
 
 package com.greplin.lucene.predicate;
 
+import com.greplin.lucene.filter.DocIdSets;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.Bits;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 
 /**
  * A doc id set that is further filtered by a predicate.
+ *
+ * When the predicate can be iterated and is estimated to match fewer
+ * documents than the underlying set, the two are intersected by
+ * leapfrogging from the predicate.  Otherwise the underlying set's
+ * documents are each checked against the predicate.
  */
 public class PredicateDocIdSet extends DocIdSet {
 
@@ -22,11 +29,33 @@ public class PredicateDocIdSet extends DocIdSet {
 
 
   /**
-   * The predicate to match against.
+   * The predicate to match against, or null if it can only be iterated.
    */
+  @Nullable
   private final Bits predicate;
 
 
+  /**
+   * The predicate as an iterable set, or null if it can only be probed.
+   */
+  @Nullable
+  private final DocIdSet predicateDocIdSet;
+
+
+  /**
+   * Whether to intersect by leapfrogging instead of probing the predicate.
+   * Decided once, since estimating the costs may count every bit.
+   */
+  private final boolean leapfrog;
+
+
+  /**
+   * Whether the predicate, rather than the underlying set, leads the
+   * leapfrog.
+   */
+  private final boolean predicateLeads;
+
+
   /**
    * Creates a predicate filter.
    * @param docIdSet the doc id set to filter.
@@ -34,17 +63,81 @@ public class PredicateDocIdSet extends DocIdSet {
    */
   public PredicateDocIdSet(final DocIdSet docIdSet,
                            final Bits predicate) {
+    this(docIdSet, predicate,
+        predicate instanceof DocIdSet ? (DocIdSet) predicate : null);
+  }
+
+
+  /**
+   * Creates a predicate filter.
+   * @param docIdSet the doc id set to filter.
+   * @param predicate the predicate, as bits.
+   * @param predicateDocIdSet the predicate, as an iterable set.
+   */
+  private PredicateDocIdSet(final DocIdSet docIdSet,
+                            @Nullable final Bits predicate,
+                            @Nullable final DocIdSet predicateDocIdSet) {
     this.docIdSet = docIdSet;
     this.predicate = predicate;
+    this.predicateDocIdSet = predicateDocIdSet;
+
+    if (predicateDocIdSet == null) {
+      this.leapfrog = false;
+      this.predicateLeads = false;
+      return;
+    }
+
+    long predicateCost = DocIdSets.cost(predicateDocIdSet);
+    long docIdSetCost = DocIdSets.cost(docIdSet);
+    if (predicate == null) {
+      // Can't probe, so lead with whichever side is known to be smaller.
+      this.leapfrog = true;
+      this.predicateLeads = docIdSetCost < 0
+          || (predicateCost >= 0 && predicateCost < docIdSetCost);
+    } else {
+      if (docIdSetCost < 0) {
+        // Assume the underlying set could match anything.
+        docIdSetCost = predicate.length();
+      }
+      this.leapfrog = predicateCost >= 0 && predicateCost < docIdSetCost;
+      this.predicateLeads = true;
+    }
+  }
+
+
+  /**
+   * Creates a predicate filter from a predicate that can be iterated, such
+   * as a sparse filter result.  Predicates that are not also Bits are
+   * always intersected by leapfrogging.
+   * @param docIdSet the doc id set to filter.
+   * @param predicate the predicate.
+   * @return the filtered doc id set.
+   */
+  public static PredicateDocIdSet intersection(final DocIdSet docIdSet,
+                                               final DocIdSet predicate) {
+    return new PredicateDocIdSet(docIdSet,
+        predicate instanceof Bits ? (Bits) predicate : null, predicate);
   }
 
 
   @Override
   public DocIdSetIterator iterator() throws IOException {
     DocIdSetIterator iterator = this.docIdSet.iterator();
-    return iterator == null
-        ? null
-        :  new PredicateDocIdSetIterator(iterator, this.predicate);
+    if (iterator == null) {
+      return null;
+    }
+
+    if (!this.leapfrog) {
+      return new PredicateDocIdSetIterator(iterator, this.predicate);
+    }
+
+    DocIdSetIterator predicateIterator = this.predicateDocIdSet.iterator();
+    if (predicateIterator == null) {
+      return null;
+    }
+    return this.predicateLeads
+        ? new LeapfrogIterator(predicateIterator, iterator)
+        : new LeapfrogIterator(iterator, predicateIterator);
   }
 
 
@@ -106,4 +199,84 @@ public class PredicateDocIdSet extends DocIdSet {
     }
 
   }
+
+
+  /**
+   * Intersects two iterators by advancing each to the other's document
+   * until they agree.
+   */
+  private static final class LeapfrogIterator extends DocIdSetIterator {
+
+    /**
+     * The iterator expected to match fewer documents.
+     */
+    private final DocIdSetIterator lead;
+
+    /**
+     * The other iterator.
+     */
+    private final DocIdSetIterator follow;
+
+    /**
+     * The current document.
+     */
+    private int doc = -1;
+
+
+    /**
+     * Intersects two iterators.
+     * @param lead the iterator expected to match fewer documents.
+     * @param follow the other iterator.
+     */
+    private LeapfrogIterator(final DocIdSetIterator lead,
+                             final DocIdSetIterator follow) {
+      this.lead = lead;
+      this.follow = follow;
+    }
+
+
+    @Override
+    public int docID() {
+      return this.doc;
+    }
+
+
+    @Override
+    public int nextDoc() throws IOException {
+      return this.doc = leapfrog(this.lead.nextDoc());
+    }
+
+
+    @Override
+    public int advance(final int target) throws IOException {
+      return this.doc = leapfrog(this.lead.advance(target));
+    }
+
+
+    /**
+     * Finds the first document both iterators match, starting from a
+     * document of the lead iterator.
+     * @param candidate the lead iterator's current document
+     * @return the first common document, or NO_MORE_DOCS
+     * @throws IOException if IO errors occur
+     */
+    private int leapfrog(final int candidate) throws IOException {
+      int leadDoc = candidate;
+      while (leadDoc != NO_MORE_DOCS) {
+        int followDoc = this.follow.docID();
+        if (followDoc < leadDoc) {
+          followDoc = this.follow.advance(leadDoc);
+        }
+        if (followDoc == leadDoc) {
+          return leadDoc;
+        } else if (followDoc == NO_MORE_DOCS) {
+          return NO_MORE_DOCS;
+        }
+        leadDoc = this.lead.advance(followDoc);
+      }
+      return NO_MORE_DOCS;
+    }
+
+  }
+
 }
@@ -6,6 +6,7 @@ package com.greplin.lucene.predicate;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.util.Bits;
 
 import java.io.IOException;
@@ -63,6 +64,65 @@ public final class Predicates {
   }
 
 
+  /**
+   * Returns a bits provider that compiles the predicate tree of the given
+   * provider into a flat evaluator for each segment.
+   * @see CompiledPredicate
+   * @param bitsProvider the provider to compile.
+   * @return the compiling bits provider.
+   */
+  public static BitsProvider compile(final BitsProvider bitsProvider) {
+    return new CompilingBitsProvider(bitsProvider);
+  }
+
+
+  /**
+   * BitsProvider that compiles the bits of another provider.
+   */
+  private static final class CompilingBitsProvider extends BitsProvider {
+
+    /**
+     * The provider to compile.
+     */
+    private final BitsProvider original;
+
+
+    /**
+     * Creates a BitsProvider that compiles its argument.
+     * @param original the provider to compile.
+     */
+    private CompilingBitsProvider(final BitsProvider original) {
+      this.original = original;
+    }
+
+
+    @Override
+    public Bits get(final IndexReader reader) throws IOException {
+      return CompiledPredicate.compile(this.original.get(reader));
+    }
+
+
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+      return this.original.getDocIdSet(reader);
+    }
+
+
+    @Override
+    public Object getCacheKey() {
+      // Compiling doesn't change which documents match.
+      return this.original.getCacheKey();
+    }
+
+
+    @Override
+    public String toString() {
+      return "compiled(" + this.original.toString() + ")";
+    }
+
+  }
+
+
   /**
    * BitsProvider that matches the opposite set of bits as its
    * argument.
@@ -101,7 +161,7 @@ public final class Predicates {
   /**
    * Bits that matches the opposite set of bits as its argument.
    */
-  private static final class InverseBits implements Bits {
+  static final class InverseBits implements Bits {
 
     /**
      * The original bits to negate.
@@ -118,6 +178,14 @@ public final class Predicates {
     }
 
 
+    /**
+     * @return the original bits being negated.
+     */
+    Bits getOriginal() {
+      return this.original;
+    }
+
+
     @Override
     public boolean get(final int index) {
       return !this.original.get(index);
@@ -132,18 +200,35 @@ public final class Predicates {
   }
 
 
+  /**
+   * Bits that match no documents.
+   */
+  static final Bits NONE_BITS = new Predicate() {
+    @Override
+    public boolean get(final int index) {
+      return false;
+    }
+  };
+
+
+  /**
+   * Bits that match all documents.
+   */
+  static final Bits ALL_BITS = new Predicate() {
+    @Override
+    public boolean get(final int index) {
+      return true;
+    }
+  };
+
+
   /**
    * Predicate that matches no documents.
    */
   public static final BitsProvider NONE = new BitsProvider() {
     @Override
     public Bits get(final IndexReader reader) throws IOException {
-      return new Predicate() {
-        @Override
-        public boolean get(final int index) {
-          return false;
-        }
-      };
+      return NONE_BITS;
     }
   };
 
@@ -154,12 +239,7 @@ public final class Predicates {
   public static final BitsProvider ALL = new BitsProvider() {
     @Override
     public Bits get(final IndexReader reader) throws IOException {
-      return new Predicate() {
-        @Override
-        public boolean get(final int index) {
-          return true;
-        }
-      };
+      return ALL_BITS;
     }
   };
 
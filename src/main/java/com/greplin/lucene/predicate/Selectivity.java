@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 The greplin-lucene-utils Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greplin.lucene.predicate;
+
+import com.google.common.collect.Lists;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Estimates of how often bits are set, for ordering predicate evaluation.
+ */
+final class Selectivity {
+
+  /** Not instantiable. */
+  private Selectivity() { }
+
+
+  /**
+   * Sorts bits from least to most dense, with bits of unknown density last.
+   * The sort is stable.
+   * @param bits the bits to sort in place
+   */
+  static void sortSparsestFirst(final List<Bits> bits) {
+    sort(bits, 1);
+  }
+
+
+  /**
+   * Sorts bits from most to least dense, with bits of unknown density last.
+   * The sort is stable.
+   * @param bits the bits to sort in place
+   */
+  static void sortDensestFirst(final List<Bits> bits) {
+    sort(bits, -1);
+  }
+
+
+  /**
+   * Sorts bits by density.  Each density is computed once up front, since
+   * for bit sets it takes a full popcount.
+   * @param bits the bits to sort in place
+   * @param sign 1 to sort by ascending density, -1 for descending
+   */
+  private static void sort(final List<Bits> bits, final int sign) {
+    if (bits.size() < 2) {
+      return;
+    }
+
+    final double[] densities = new double[bits.size()];
+    Integer[] order = new Integer[bits.size()];
+    for (int i = 0; i < order.length; i++) {
+      densities[i] = sign * density(bits.get(i));
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer a, final Integer b) {
+        return compareKnownFirst(densities[a], densities[b]);
+      }
+    });
+
+    List<Bits> sorted = Lists.newArrayListWithCapacity(order.length);
+    for (int i : order) {
+      sorted.add(bits.get(i));
+    }
+    for (int i = 0; i < order.length; i++) {
+      bits.set(i, sorted.get(i));
+    }
+  }
+
+
+  /**
+   * Compares two values in ascending order, with NaN last.
+   * @param a the first value
+   * @param b the second value
+   * @return the comparison result
+   */
+  private static int compareKnownFirst(final double a, final double b) {
+    if (Double.isNaN(a) || Double.isNaN(b)) {
+      return Double.isNaN(a) ? (Double.isNaN(b) ? 0 : 1) : -1;
+    }
+    return Double.compare(a, b);
+  }
+
+
+  /**
+   * Estimates the fraction of set bits.  Only bit sets and constants know
+   * their density; evaluating other bits could be arbitrarily expensive.
+   * @param bits the bits
+   * @return the fraction of set bits, or NaN if unknown
+   */
+  static double density(final Bits bits) {
+    if (matchesNone(bits)) {
+      return 0;
+    } else if (matchesAll(bits)) {
+      return 1;
+    } else if (bits instanceof FixedBitSet) {
+      FixedBitSet fixedBitSet = (FixedBitSet) bits;
+      return fixedBitSet.length() == 0
+          ? 0 : (double) fixedBitSet.cardinality() / fixedBitSet.length();
+    } else if (bits instanceof OpenBitSet) {
+      OpenBitSet openBitSet = (OpenBitSet) bits;
+      return openBitSet.capacity() == 0
+          ? 0 : (double) openBitSet.cardinality() / openBitSet.capacity();
+    } else {
+      return Double.NaN;
+    }
+  }
+
+
+  /**
+   * @param bits the bits
+   * @return whether the bits are known to match every document
+   */
+  static boolean matchesAll(final Bits bits) {
+    return bits == Predicates.ALL_BITS || bits instanceof Bits.MatchAllBits;
+  }
+
+
+  /**
+   * @param bits the bits
+   * @return whether the bits are known to match no documents
+   */
+  static boolean matchesNone(final Bits bits) {
+    return bits == Predicates.NONE_BITS || bits instanceof Bits.MatchNoBits;
+  }
+
+}
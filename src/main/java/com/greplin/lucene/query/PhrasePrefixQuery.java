@@ -32,6 +32,9 @@ import java.util.List;
 
 /**
  * A Query that matches documents containing phrases with a specified prefix.
+ *
+ * To filter on a phrase prefix without scoring, use
+ * {@link com.greplin.lucene.filter.PhraseFilter.Builder#addPrefix} instead.
  */
 public class PhrasePrefixQuery extends Query {
   /**
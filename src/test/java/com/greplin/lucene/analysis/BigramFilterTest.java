@@ -0,0 +1,124 @@
+package com.greplin.lucene.analysis;
+
+import com.google.common.collect.Lists;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Tests for the bigram filter.
+ */
+public class BigramFilterTest {
+
+  /**
+   * Emits the given tokens with the given position increments.
+   */
+  private static final class FixedTokenStream extends TokenStream {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final String[] terms;
+    private final int[] increments;
+    private int next;
+
+    private FixedTokenStream(String[] terms, int[] increments) {
+      this.terms = terms;
+      this.increments = increments;
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (this.next == this.terms.length) {
+        return false;
+      }
+      clearAttributes();
+      this.termAtt.append(this.terms[this.next]);
+      this.posIncAtt.setPositionIncrement(this.increments[this.next]);
+      this.next++;
+      return true;
+    }
+  }
+
+  /**
+   * @return each token as "text@position"
+   */
+  private static List<String> tokens(TokenStream stream) throws IOException {
+    CharTermAttribute termAtt = stream.getAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncAtt = stream.getAttribute(PositionIncrementAttribute.class);
+    List<String> result = Lists.newArrayList();
+    int position = -1;
+    while (stream.incrementToken()) {
+      position += posIncAtt.getPositionIncrement();
+      result.add(termAtt.toString().replace(BigramFilter.SEPARATOR, '_') + "@" + position);
+    }
+    return result;
+  }
+
+  private static BigramFilter whitespace(String text) {
+    return new BigramFilter(new WhitespaceTokenizer(Version.LUCENE_32, new StringReader(text)));
+  }
+
+  @Test
+  public void testBigrams() throws Exception {
+    Assert.assertEquals(Lists.newArrayList("_@0", "the_quick@0", "quick_brown@1"),
+        tokens(whitespace("the quick brown")));
+  }
+
+  @Test
+  public void testOffsets() throws Exception {
+    BigramFilter filter = whitespace("the quick brown");
+    OffsetAttribute offsetAtt = filter.getAttribute(OffsetAttribute.class);
+    Assert.assertTrue(filter.incrementToken());
+    Assert.assertTrue(filter.incrementToken());
+    Assert.assertEquals(0, offsetAtt.startOffset());
+    Assert.assertEquals(9, offsetAtt.endOffset());
+    Assert.assertTrue(filter.incrementToken());
+    Assert.assertEquals(4, offsetAtt.startOffset());
+    Assert.assertEquals(15, offsetAtt.endOffset());
+    Assert.assertFalse(filter.incrementToken());
+  }
+
+  @Test
+  public void testMarkerWithoutBigrams() throws Exception {
+    Assert.assertEquals(Lists.newArrayList("_@0"), tokens(whitespace("single")));
+    Assert.assertEquals(Lists.newArrayList("_@0"), tokens(whitespace("")));
+  }
+
+  @Test
+  public void testGapsAndStackedTokens() throws Exception {
+    TokenStream input = new FixedTokenStream(
+        new String[] {"a", "b", "bee", "c", "d", "e"},
+        new int[] {1, 1, 0, 2, 1, 1});
+    Assert.assertEquals(Lists.newArrayList("_@0", "a_b@0", "c_d@3", "d_e@4"),
+        tokens(new BigramFilter(input)));
+  }
+
+  @Test
+  public void testLeadingGap() throws Exception {
+    TokenStream input = new FixedTokenStream(new String[] {"a", "b"}, new int[] {3, 1});
+    Assert.assertEquals(Lists.newArrayList("_@0", "a_b@2"), tokens(new BigramFilter(input)));
+  }
+
+  @Test
+  public void testSeparatorIsNotAmbiguous() {
+    Assert.assertFalse(BigramFilter.bigram("new", "york").equals("new york"));
+    Assert.assertFalse(BigramFilter.bigram("a", "b").equals(BigramFilter.MARKER));
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    BigramFilter filter = whitespace("x y");
+    Assert.assertEquals(Lists.newArrayList("_@0", "x_y@0"), tokens(filter));
+    filter.reset();
+    Assert.assertEquals(Lists.newArrayList("_@0"), tokens(filter));
+  }
+
+}
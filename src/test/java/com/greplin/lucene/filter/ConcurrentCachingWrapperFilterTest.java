@@ -0,0 +1,176 @@
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the concurrent caching wrapper filter.
+ */
+public class ConcurrentCachingWrapperFilterTest extends BaseFilterTest {
+
+  private static final int DOCS = 100;
+
+  private static class CountingFilter extends Filter {
+    private final Filter underlying;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private CountingFilter(Filter underlying) {
+      this.underlying = underlying;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      this.calls.incrementAndGet();
+      return this.underlying.getDocIdSet(reader);
+    }
+  }
+
+  private static class SparseFilter extends Filter {
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      return new SortedIntDocIdSet(new int[] {1, 2, 3, 50, 99});
+    }
+  }
+
+  private IndexWriter createIndex() throws IOException {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      Document doc = new Document();
+      doc.add(new Field("id", Integer.toString(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      doc.add(new Field("f", i % 2 == 0 ? "even" : "odd", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+    }
+    w.commit();
+    return w;
+  }
+
+  private static IndexReader delete(IndexWriter w, IndexReader reader, int... ids) throws IOException {
+    for (int id : ids) {
+      w.deleteDocuments(new Term("id", Integer.toString(id)));
+    }
+    w.commit();
+    IndexReader newReader = IndexReader.openIfChanged(reader);
+    Assert.assertNotNull(newReader);
+    return newReader;
+  }
+
+  private static int count(DocIdSet set) throws IOException {
+    DocIdSetIterator it = set.iterator();
+    int count = 0;
+    while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testIgnoreDeletes() throws Exception {
+    IndexWriter w = createIndex();
+    IndexReader reader = IndexReader.open(w.getDirectory());
+    IndexReader deleted = delete(w, reader, 0, 2);
+    w.close();
+
+    Filter filter = new ConcurrentCachingWrapperFilter(
+        new QueryWrapperFilter(new TermQuery(new Term("f", "even"))));
+    Assert.assertEquals(DOCS / 2, count(filter.getDocIdSet(reader.getSequentialSubReaders()[0])));
+
+    // The result cached for the core still includes the deleted documents.
+    Assert.assertEquals(DOCS / 2, count(filter.getDocIdSet(deleted.getSequentialSubReaders()[0])));
+  }
+
+  @Test
+  public void testMaskDeletes() throws Exception {
+    IndexWriter w = createIndex();
+    IndexReader reader = IndexReader.open(w.getDirectory());
+    IndexReader segment = reader.getSequentialSubReaders()[0];
+
+    CountingFilter underlying = new CountingFilter(
+        new QueryWrapperFilter(new TermQuery(new Term("f", "even"))));
+    Filter filter = new ConcurrentCachingWrapperFilter(
+        underlying, ConcurrentCachingWrapperFilter.DeletesMode.MASK);
+
+    DocIdSet original = filter.getDocIdSet(segment);
+    Assert.assertEquals(DOCS / 2, count(original));
+
+    IndexReader firstReader = delete(w, reader, 0, 2, 3);
+    IndexReader first = firstReader.getSequentialSubReaders()[0];
+    DocIdSet firstSet = filter.getDocIdSet(first);
+    Assert.assertEquals(DOCS / 2 - 2, count(firstSet));
+    Assert.assertFalse(DocIdSets.contains(firstSet, 0));
+    Assert.assertFalse(DocIdSets.contains(firstSet, 2));
+    Assert.assertTrue(DocIdSets.contains(firstSet, 4));
+    Assert.assertSame(firstSet, filter.getDocIdSet(first));
+
+    IndexReader secondReader = delete(w, firstReader, 4);
+    IndexReader second = secondReader.getSequentialSubReaders()[0];
+    DocIdSet secondSet = filter.getDocIdSet(second);
+    Assert.assertEquals(DOCS / 2 - 3, count(secondSet));
+    Assert.assertFalse(DocIdSets.contains(secondSet, 4));
+
+    // The first generation is unaffected by later deletes.
+    Assert.assertSame(firstSet, filter.getDocIdSet(first));
+    Assert.assertEquals(DOCS / 2, count(filter.getDocIdSet(segment)));
+
+    // The underlying filter is only computed once for the segment core.
+    Assert.assertEquals(1, underlying.calls.get());
+    w.close();
+  }
+
+  @Test
+  public void testMaskSparseDeletes() throws Exception {
+    IndexWriter w = createIndex();
+    IndexReader reader = IndexReader.open(w.getDirectory());
+    IndexReader deleted = delete(w, reader, 2, 99);
+    w.close();
+
+    Filter filter = new ConcurrentCachingWrapperFilter(
+        new SparseFilter(), new FilterCache(1 << 20),
+        ConcurrentCachingWrapperFilter.DeletesMode.MASK);
+    assertDocIds(filter.getDocIdSet(deleted.getSequentialSubReaders()[0]),
+        false, true, false, true);
+    Assert.assertEquals(3, count(filter.getDocIdSet(deleted.getSequentialSubReaders()[0])));
+  }
+
+  @Test
+  public void testMaskFilteredViewsOfOneSegment() throws Exception {
+    IndexWriter w = createIndex();
+    IndexReader reader = IndexReader.open(w.getDirectory());
+    IndexReader deleted = delete(w, reader, 0);
+    w.close();
+
+    IndexReader segment = deleted.getSequentialSubReaders()[0];
+    FilteredIndexReader even = FilteredIndexReader.wrap(
+        segment, new FilterBitsProvider(TermsFilter.from(new Term("f", "even"))));
+    FilteredIndexReader odd = FilteredIndexReader.wrap(
+        segment, new FilterBitsProvider(TermsFilter.from(new Term("f", "odd"))));
+    Assert.assertNotSame(even.getDeletesCacheKey(), odd.getDeletesCacheKey());
+    Assert.assertNotSame(segment.getDeletesCacheKey(), even.getDeletesCacheKey());
+
+    Filter filter = new ConcurrentCachingWrapperFilter(
+        new QueryWrapperFilter(new MatchAllDocsQuery()),
+        ConcurrentCachingWrapperFilter.DeletesMode.MASK);
+
+    // Each view's live documents are its own, whichever is masked first.
+    Assert.assertEquals(DOCS / 2 - 1, count(filter.getDocIdSet(even)));
+    Assert.assertEquals(DOCS / 2, count(filter.getDocIdSet(odd)));
+    Assert.assertEquals(DOCS - 1, count(filter.getDocIdSet(segment)));
+    Assert.assertEquals(DOCS - 1, LiveDocs.get(segment).cardinality());
+    Assert.assertEquals(DOCS / 2 - 1, even.numDocs());
+    Assert.assertEquals(DOCS / 2, odd.numDocs());
+  }
+
+}
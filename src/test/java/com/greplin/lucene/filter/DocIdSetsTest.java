@@ -0,0 +1,38 @@
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for doc id set utilities.
+ */
+public class DocIdSetsTest {
+
+  @Test
+  public void testCompactEncodings() throws Exception {
+    Assert.assertSame(DocIdSet.EMPTY_DOCIDSET, DocIdSets.compact(null, 1000));
+    Assert.assertSame(DocIdSet.EMPTY_DOCIDSET, DocIdSets.compact(new int[0], 1000));
+
+    // Sparse: 4 bytes per doc.
+    Assert.assertTrue(DocIdSets.compact(new int[] {5, 100000, 900000}, 1000000)
+        instanceof SortedIntDocIdSet);
+
+    // Moderately dense: still sorted ints rather than a VInt list of gaps,
+    // which would be smaller but can't advance quickly.
+    int[] moderate = new int[10000];
+    for (int i = 0; i < moderate.length; i++) {
+      moderate[i] = 50 * i;
+    }
+    Assert.assertTrue(DocIdSets.compact(moderate, 1000000) instanceof SortedIntDocIdSet);
+
+    // Dense: a bit per doc.
+    int[] dense = new int[500];
+    for (int i = 0; i < dense.length; i++) {
+      dense[i] = 2 * i;
+    }
+    Assert.assertTrue(DocIdSets.compact(dense, 1000) instanceof FixedBitSet);
+  }
+
+}
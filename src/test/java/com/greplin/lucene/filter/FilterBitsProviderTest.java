@@ -7,6 +7,7 @@ import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -52,4 +53,17 @@ public class FilterBitsProviderTest extends BaseFilterTest {
     }
     Assert.assertTrue(true);
   }
+
+  @Test
+  public void testSparseResultsAreCopiedToBitSet() throws Exception {
+    final SortedIntDocIdSet sparse = new SortedIntDocIdSet(new int[0]);
+    FilterBitsProvider provider = new FilterBitsProvider(new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(IndexReader reader) {
+        return sparse;
+      }
+    });
+    Assert.assertTrue(provider.get(this.reader) instanceof FixedBitSet);
+    Assert.assertSame(sparse, provider.getDocIdSet(this.reader));
+  }
 }
@@ -0,0 +1,310 @@
+package com.greplin.lucene.filter;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for the shared filter cache.
+ */
+public class FilterCacheTest extends BaseFilterTest {
+
+  private static final int SEGMENTS = 3;
+
+  private static final int DOCS_PER_SEGMENT = 1000;
+
+  private IndexReader createReader() throws IOException {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < SEGMENTS * DOCS_PER_SEGMENT; i++) {
+      Document doc = new Document();
+      doc.add(new Field("f", i % 2 == 0 ? "even" : "odd", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+      if (i % DOCS_PER_SEGMENT == DOCS_PER_SEGMENT - 1) {
+        w.commit();
+      }
+    }
+    return createReader(w);
+  }
+
+  private static class CountingFilter extends Filter {
+    private final Filter underlying;
+    private final AtomicInteger calls;
+
+    private CountingFilter(Filter underlying) {
+      this(underlying, new AtomicInteger());
+    }
+
+    private CountingFilter(Filter underlying, AtomicInteger calls) {
+      this.underlying = underlying;
+      this.calls = calls;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      this.calls.incrementAndGet();
+      return this.underlying.getDocIdSet(reader);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof CountingFilter && this.underlying.equals(((CountingFilter) o).underlying);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.underlying.hashCode();
+    }
+  }
+
+  private static void getPerSegment(Filter filter, IndexReader reader) throws IOException {
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      filter.getDocIdSet(subReader);
+    }
+  }
+
+  @Test
+  public void testCachesPerSegment() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    CountingFilter underlying = new CountingFilter(TermsFilter.from(new Term("f", "even")));
+    Filter filter = new ConcurrentCachingWrapperFilter(underlying, cache);
+
+    getPerSegment(filter, reader);
+    getPerSegment(filter, reader);
+    Assert.assertEquals(SEGMENTS, underlying.calls.get());
+    Assert.assertEquals(SEGMENTS, cache.size());
+    Assert.assertEquals(SEGMENTS, cache.stats().hitCount());
+    Assert.assertEquals(SEGMENTS, cache.stats().missCount());
+    Assert.assertTrue(cache.sizeInBytes() >= SEGMENTS * DOCS_PER_SEGMENT / 8);
+    assertDocIds(filter.getDocIdSet(reader.getSequentialSubReaders()[0]), true, false, true, false);
+  }
+
+  @Test
+  public void testEvictsOverBudget() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(4 * DOCS_PER_SEGMENT);
+    for (int i = 0; i < 20; i++) {
+      Filter distinct = TermsFilter.from(new Term("f", "odd"), new Term("g", Integer.toString(i)));
+      getPerSegment(new ConcurrentCachingWrapperFilter(distinct, cache), reader);
+    }
+    Assert.assertTrue(cache.stats().evictionCount() > 0);
+    Assert.assertTrue(cache.sizeInBytes() <= cache.maxSizeInBytes());
+    Assert.assertTrue(cache.size() < 20 * SEGMENTS);
+  }
+
+  @Test
+  public void testWholeBudgetIsAvailableToOneResult() throws Exception {
+    IndexReader reader = createReader();
+    // One segment's bit set is more than a quarter of the budget.
+    FilterCache cache = new FilterCache(DOCS_PER_SEGMENT / 8 + 100);
+    Filter filter = new ConcurrentCachingWrapperFilter(TermsFilter.from(new Term("f", "even")), cache);
+    filter.getDocIdSet(reader.getSequentialSubReaders()[0]);
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(0, cache.stats().evictionCount());
+  }
+
+  @Test
+  public void testResultsOfUnknownTypesAreReencoded() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    final Filter even = TermsFilter.from(new Term("f", "even"));
+    Filter opaque = new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+        final DocIdSet docIdSet = even.getDocIdSet(reader);
+        return new DocIdSet() {
+          @Override
+          public DocIdSetIterator iterator() throws IOException {
+            return docIdSet.iterator();
+          }
+
+          @Override
+          public boolean isCacheable() {
+            return true;
+          }
+        };
+      }
+    };
+
+    DocIdSet cached = new ConcurrentCachingWrapperFilter(opaque, cache)
+        .getDocIdSet(reader.getSequentialSubReaders()[0]);
+    Assert.assertTrue(cached instanceof FixedBitSet);
+    Assert.assertTrue(cache.sizeInBytes() >= DOCS_PER_SEGMENT / 8);
+    assertDocIds(cached, true, false, true, false);
+  }
+
+  @Test
+  public void testPurgesClosedSegments() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    getPerSegment(new ConcurrentCachingWrapperFilter(TermsFilter.from(new Term("f", "odd")), cache), reader);
+    Assert.assertEquals(SEGMENTS, cache.size());
+
+    reader.close();
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0, cache.sizeInBytes());
+  }
+
+  /**
+   * A segment wrapper with its own core, which never reports being closed.
+   */
+  private static class UnclosedReader extends FilterIndexReader {
+    private final Object coreCacheKey = new Object();
+    private int finishedListeners;
+
+    private UnclosedReader(IndexReader in) {
+      super(in);
+    }
+
+    @Override
+    public Object getCoreCacheKey() {
+      return this.coreCacheKey;
+    }
+
+    @Override
+    public void addReaderFinishedListener(ReaderFinishedListener listener) {
+      this.finishedListeners++;
+    }
+  }
+
+  @Test
+  public void testRegistersOncePerCore() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    UnclosedReader segment = new UnclosedReader(reader.getSequentialSubReaders()[0]);
+    for (int i = 0; i < 5; i++) {
+      Filter distinct = TermsFilter.from(new Term("f", "odd"), new Term("g", Integer.toString(i)));
+      new ConcurrentCachingWrapperFilter(distinct, cache).getDocIdSet(segment);
+    }
+    Assert.assertEquals(5, cache.size());
+    Assert.assertEquals(1, segment.finishedListeners);
+  }
+
+  @Test
+  public void testDoesNotPinUnreachableCores() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    UnclosedReader segment = new UnclosedReader(reader.getSequentialSubReaders()[0]);
+    WeakReference<Object> coreCacheKey = new WeakReference<Object>(segment.getCoreCacheKey());
+    new ConcurrentCachingWrapperFilter(TermsFilter.from(new Term("f", "odd")), cache).getDocIdSet(segment);
+    Assert.assertEquals(1, cache.size());
+
+    segment = null;
+    for (int i = 0; i < 50 && coreCacheKey.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assert.assertNull(coreCacheKey.get());
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0, cache.sizeInBytes());
+  }
+
+  @Test
+  public void testEqualFiltersShareResults() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    AtomicInteger calls = new AtomicInteger();
+    Filter first = new ConcurrentCachingWrapperFilter(
+        new CountingFilter(TermsFilter.from(new Term("f", "even")), calls), cache);
+    Filter second = new ConcurrentCachingWrapperFilter(
+        new CountingFilter(TermsFilter.from(new Term("f", "even")), calls), cache);
+    Filter other = new ConcurrentCachingWrapperFilter(
+        new CountingFilter(TermsFilter.from(new Term("f", "odd")), calls), cache);
+
+    getPerSegment(first, reader);
+    getPerSegment(second, reader);
+    Assert.assertEquals(SEGMENTS, calls.get());
+    getPerSegment(other, reader);
+    Assert.assertEquals(2 * SEGMENTS, calls.get());
+    Assert.assertEquals(2 * SEGMENTS, cache.size());
+  }
+
+  @Test
+  public void testConcurrentLoadsAreDeduplicated() throws Exception {
+    final IndexReader reader = createReader();
+    final FilterCache cache = new FilterCache(1 << 20);
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final Filter slow = new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+        calls.incrementAndGet();
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return TermsFilter.from(new Term("f", "even")).getDocIdSet(reader);
+      }
+    };
+
+    List<Thread> threads = Lists.newArrayList();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            getPerSegment(new ConcurrentCachingWrapperFilter(slow, cache), reader);
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertNull(failure.get());
+    Assert.assertEquals(SEGMENTS, calls.get());
+  }
+
+  @Test
+  public void testStatsByFilterType() throws Exception {
+    IndexReader reader = createReader();
+    FilterCache cache = new FilterCache(1 << 20);
+    Filter terms = new ConcurrentCachingWrapperFilter(TermsFilter.from(new Term("f", "even")), cache);
+    Filter prefix = new ConcurrentCachingWrapperFilter(new PrefixFilter("f", "o"), cache);
+    getPerSegment(terms, reader);
+    getPerSegment(terms, reader);
+    getPerSegment(prefix, reader);
+
+    CacheStats termsStats = cache.statsByFilterType().get(TermsFilter.class);
+    Assert.assertEquals(SEGMENTS, termsStats.hitCount());
+    Assert.assertEquals(SEGMENTS, termsStats.missCount());
+    Assert.assertEquals(SEGMENTS, termsStats.loadSuccessCount());
+
+    CacheStats prefixStats = cache.statsByFilterType().get(PrefixFilter.class);
+    Assert.assertEquals(0, prefixStats.hitCount());
+    Assert.assertEquals(SEGMENTS, prefixStats.missCount());
+
+    Map<Class<?>, Long> sizes = cache.sizeInBytesByFilterType();
+    Assert.assertEquals(cache.sizeInBytes(), sizes.get(TermsFilter.class) + sizes.get(PrefixFilter.class));
+  }
+
+}
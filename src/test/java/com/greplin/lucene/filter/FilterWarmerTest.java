@@ -0,0 +1,191 @@
+package com.greplin.lucene.filter;
+
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the filter warmer.
+ */
+public class FilterWarmerTest {
+
+  private ExecutorService executor;
+
+  private Directory directory;
+
+  private IndexWriter writer;
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  private final Filter counting = new Filter() {
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      calls.incrementAndGet();
+      return TermsFilter.from(new Term("f", "even")).getDocIdSet(reader);
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    this.executor = Executors.newFixedThreadPool(2);
+    this.directory = new RAMDirectory();
+    this.writer = new IndexWriter(this.directory,
+        new IndexWriterConfig(Version.LUCENE_32, new WhitespaceAnalyzer(Version.LUCENE_32)));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    this.executor.shutdown();
+    this.writer.close();
+  }
+
+  private void addSegment() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      Document doc = new Document();
+      doc.add(new Field("f", i % 2 == 0 ? "even" : "odd", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      this.writer.addDocument(doc);
+    }
+    this.writer.commit();
+  }
+
+  private void getPerSegment(Filter filter, IndexReader reader) throws IOException {
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      filter.getDocIdSet(subReader);
+    }
+  }
+
+  @Test
+  public void testWarmsNewSegments() throws Exception {
+    Filter cached = new ConcurrentCachingWrapperFilter(this.counting, new FilterCache(1 << 20));
+    FilterWarmer warmer = new FilterWarmer(this.executor);
+    warmer.register(cached);
+
+    addSegment();
+    addSegment();
+    IndexReader reader = IndexReader.open(this.directory);
+    warmer.warm(reader).get();
+    Assert.assertEquals(2, this.calls.get());
+
+    // Queries hit the warm entries.
+    getPerSegment(cached, reader);
+    Assert.assertEquals(2, this.calls.get());
+
+    // Warming again does nothing, and a reopen only warms the new segment.
+    warmer.warm(reader).get();
+    Assert.assertEquals(2, this.calls.get());
+    addSegment();
+    IndexReader reopened = IndexReader.openIfChanged(reader);
+    warmer.warm(reopened).get();
+    Assert.assertEquals(3, this.calls.get());
+    getPerSegment(cached, reopened);
+    Assert.assertEquals(3, this.calls.get());
+
+    reader.close();
+    reopened.close();
+  }
+
+  /**
+   * Runs tasks on the calling thread, unless told to reject them.
+   */
+  private static final class RejectingExecutor extends AbstractExecutorService {
+    private volatile boolean rejecting = true;
+
+    @Override
+    public void execute(Runnable command) {
+      if (this.rejecting) {
+        throw new RejectedExecutionException();
+      }
+      command.run();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+  }
+
+  @Test
+  public void testRejectedFiltersAreWarmedLater() throws Exception {
+    Filter cached = new ConcurrentCachingWrapperFilter(this.counting, new FilterCache(1 << 20));
+    RejectingExecutor rejecting = new RejectingExecutor();
+    FilterWarmer warmer = new FilterWarmer(rejecting);
+    warmer.register(cached);
+
+    addSegment();
+    IndexReader reader = IndexReader.open(this.directory);
+    try {
+      warmer.warm(reader).get();
+      Assert.fail();
+    } catch (ExecutionException expected) {
+      Assert.assertTrue(expected.getCause() instanceof RejectedExecutionException);
+    }
+    Assert.assertEquals(0, this.calls.get());
+
+    rejecting.rejecting = false;
+    warmer.warm(reader).get();
+    Assert.assertEquals(1, this.calls.get());
+    reader.close();
+  }
+
+  @Test
+  public void testUnregisteredFiltersComputeInline() throws Exception {
+    Filter cached = new ConcurrentCachingWrapperFilter(this.counting);
+    FilterWarmer warmer = new FilterWarmer(this.executor);
+    warmer.register(cached);
+    warmer.unregister(cached);
+
+    addSegment();
+    IndexReader reader = IndexReader.open(this.directory);
+    warmer.warm(reader).get();
+    Assert.assertEquals(0, this.calls.get());
+
+    getPerSegment(cached, reader);
+    Assert.assertEquals(1, this.calls.get());
+    reader.close();
+  }
+
+}
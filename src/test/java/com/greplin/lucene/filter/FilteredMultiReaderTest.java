@@ -0,0 +1,209 @@
+package com.greplin.lucene.filter;
+
+import com.greplin.lucene.predicate.BitsProvider;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the filtered multi reader.
+ */
+public class FilteredMultiReaderTest extends BaseFilterTest {
+
+  private static final int SEGMENTS = 5;
+
+  private static final int DOCS_PER_SEGMENT = 100;
+
+  private IndexReader reader;
+
+  private FilteredIndexReader filtered;
+
+  @Before
+  public void setUp() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < SEGMENTS * DOCS_PER_SEGMENT; i++) {
+      Document doc = new Document();
+      doc.add(new Field("id", Integer.toString(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+      if (i % DOCS_PER_SEGMENT == DOCS_PER_SEGMENT - 1) {
+        w.commit();
+      }
+    }
+    w.deleteDocuments(new Term("id", "0"), new Term("id", "150"), new Term("id", "499"));
+    this.reader = createReader(w);
+    Assert.assertEquals(SEGMENTS, this.reader.getSequentialSubReaders().length);
+
+    this.filtered = FilteredIndexReader.wrap(this.reader, everyThird());
+  }
+
+  /**
+   * Allows every third document within each segment.
+   */
+  private static BitsProvider everyThird() {
+    return new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+        for (int i = 0; i < reader.maxDoc(); i += 3) {
+          bits.set(i);
+        }
+        return bits;
+      }
+    };
+  }
+
+  private static boolean expectedLive(int doc) {
+    return doc % DOCS_PER_SEGMENT % 3 == 0 && doc != 0 && doc != 150 && doc != 499;
+  }
+
+  @Test
+  public void testIsDeleted() throws Exception {
+    int live = 0;
+    for (int i = 0; i < this.filtered.maxDoc(); i++) {
+      Assert.assertEquals("doc " + i, !expectedLive(i), this.filtered.isDeleted(i));
+      live += expectedLive(i) ? 1 : 0;
+    }
+    Assert.assertEquals(live, this.filtered.numDocs());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIsDeletedOutOfBounds() throws IOException {
+    this.filtered.isDeleted(this.filtered.maxDoc());
+  }
+
+  @Test
+  public void testLiveDocs() throws Exception {
+    FixedBitSet liveDocs = this.filtered.getLiveDocs();
+    Assert.assertEquals(this.filtered.maxDoc(), liveDocs.length());
+    for (int i = 0; i < this.filtered.maxDoc(); i++) {
+      Assert.assertEquals("doc " + i, expectedLive(i), liveDocs.get(i));
+    }
+    Assert.assertEquals(this.filtered.numDocs(), liveDocs.cardinality());
+    Assert.assertSame(liveDocs, this.filtered.getLiveDocs());
+  }
+
+  @Test
+  public void testDeleteThroughReader() throws Exception {
+    IndexReader writable = IndexReader.open(this.reader.directory(), false);
+    FilteredIndexReader filtered = FilteredIndexReader.wrap(writable, everyThird());
+    int live = this.filtered.numDocs();
+    int liveInSecond = this.filtered.getSequentialSubReaders()[1].numDocs();
+    Assert.assertEquals(live, filtered.numDocs());
+    Assert.assertEquals(live, filtered.getLiveDocs().cardinality());
+
+    filtered.deleteDocument(3);
+    filtered.deleteDocument(DOCS_PER_SEGMENT + 3);
+    Assert.assertTrue(filtered.isDeleted(DOCS_PER_SEGMENT + 3));
+    Assert.assertEquals(live - 2, filtered.numDocs());
+    Assert.assertEquals(live - 2, filtered.getLiveDocs().cardinality());
+    Assert.assertEquals(liveInSecond - 1, filtered.getSequentialSubReaders()[1].numDocs());
+
+    // Also restores documents 0 and 499 from setUp; 150 is filtered out.
+    filtered.undeleteAll();
+    Assert.assertEquals(live + 2, filtered.numDocs());
+    Assert.assertEquals(live + 2, filtered.getLiveDocs().cardinality());
+    writable.close();
+  }
+
+  @Test
+  public void testLazyBits() throws Exception {
+    final AtomicInteger calls = new AtomicInteger();
+    FilteredIndexReader lazy = FilteredIndexReader.wrapLazily(this.reader, new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        calls.incrementAndGet();
+        return new Bits.MatchAllBits(reader.maxDoc());
+      }
+    });
+    Assert.assertEquals(0, calls.get());
+
+    IndexReader[] segments = lazy.getSequentialSubReaders();
+    TermDocs termDocs = segments[0].termDocs(new Term("id", "5"));
+    Assert.assertTrue(termDocs.next());
+    Assert.assertEquals(1, calls.get());
+
+    Assert.assertFalse(lazy.isDeleted(DOCS_PER_SEGMENT + 1));
+    Assert.assertFalse(lazy.isDeleted(DOCS_PER_SEGMENT + 2));
+    segments[0].termDocs(new Term("id", "6"));
+    Assert.assertEquals(2, calls.get());
+
+    Assert.assertEquals(SEGMENTS * DOCS_PER_SEGMENT - 3, lazy.numDocs());
+    Assert.assertEquals(SEGMENTS, calls.get());
+  }
+
+  @Test(expected = IOException.class)
+  public void testLazyBitsPropagateIOException() throws Exception {
+    FilteredIndexReader lazy = FilteredIndexReader.wrapLazily(this.reader, new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) throws IOException {
+        throw new IOException("expected");
+      }
+    });
+    lazy.termDocs(new Term("id", "5")).next();
+  }
+
+  @Test
+  public void testReopenReusesUnchangedSegments() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 2 * DOCS_PER_SEGMENT; i++) {
+      Document doc = new Document();
+      doc.add(new Field("id", Integer.toString(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+      if (i % DOCS_PER_SEGMENT == DOCS_PER_SEGMENT - 1) {
+        w.commit();
+      }
+    }
+
+    final AtomicInteger calls = new AtomicInteger();
+    IndexReader filtered = FilteredIndexReader.wrap(IndexReader.open(w.getDirectory()), new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        calls.incrementAndGet();
+        return new Bits.MatchAllBits(reader.maxDoc());
+      }
+    });
+    Assert.assertEquals(2, calls.get());
+    Assert.assertNull(IndexReader.openIfChanged(filtered));
+
+    Document doc = new Document();
+    doc.add(new Field("id", "new", Field.Store.NO, Field.Index.NOT_ANALYZED));
+    w.addDocument(doc);
+    w.deleteDocuments(new Term("id", "5"));
+    w.commit();
+
+    IndexReader reopened = IndexReader.openIfChanged(filtered);
+    Assert.assertNotNull(reopened);
+    Assert.assertTrue(reopened instanceof FilteredMultiReader);
+    Assert.assertEquals(3, reopened.getSequentialSubReaders().length);
+    Assert.assertEquals(3, calls.get());
+    Assert.assertEquals(2 * DOCS_PER_SEGMENT, reopened.numDocs());
+    Assert.assertTrue(reopened.isDeleted(5));
+    Assert.assertFalse(reopened.termDocs(new Term("id", "5")).next());
+    Assert.assertTrue(reopened.termDocs(new Term("id", "new")).next());
+
+    // The deprecated API goes through the same path.
+    w.deleteDocuments(new Term("id", "6"));
+    w.commit();
+    IndexReader reopenedAgain = reopened.reopen();
+    Assert.assertNotSame(reopened, reopenedAgain);
+    Assert.assertEquals(3, calls.get());
+    Assert.assertTrue(reopenedAgain.isDeleted(6));
+
+    w.close();
+    filtered.close();
+    reopened.close();
+    reopenedAgain.close();
+  }
+
+}
@@ -0,0 +1,231 @@
+package com.greplin.lucene.filter;
+
+import com.greplin.lucene.predicate.BitsProvider;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the filtered segment reader.
+ */
+public class FilteredSegmentReaderTest extends BaseFilterTest {
+
+  private static final int DOCS = 1000;
+
+  private static final Term ALL = new Term("f", "all");
+
+  private IndexReader segment;
+
+  private FixedBitSet allowed;
+
+  @Before
+  public void setUp() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      Document doc = new Document();
+      doc.add(new Field("f", "all", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+    }
+    w.optimize();
+    IndexReader reader = createReader(w);
+    this.segment = reader.getSequentialSubReaders()[0];
+
+    this.allowed = new FixedBitSet(DOCS);
+    for (int i = 0; i < DOCS; i += 97) {
+      this.allowed.set(i);
+    }
+    this.allowed.set(500, 520);
+  }
+
+  /**
+   * Provides the allowed docs as a FixedBitSet.
+   */
+  private BitsProvider fixedProvider() {
+    return new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        return FilteredSegmentReaderTest.this.allowed;
+      }
+    };
+  }
+
+  /**
+   * Provides the allowed docs as opaque bits.
+   */
+  private BitsProvider opaqueProvider() {
+    return new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        return new Bits() {
+          @Override
+          public boolean get(int index) {
+            return FilteredSegmentReaderTest.this.allowed.get(index);
+          }
+
+          @Override
+          public int length() {
+            return DOCS;
+          }
+        };
+      }
+    };
+  }
+
+  private List<Integer> expected() {
+    List<Integer> result = new ArrayList<Integer>();
+    for (int i = this.allowed.nextSetBit(0); i != -1;
+         i = i + 1 < DOCS ? this.allowed.nextSetBit(i + 1) : -1) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  private static List<Integer> next(TermDocs termDocs) throws IOException {
+    List<Integer> result = new ArrayList<Integer>();
+    while (termDocs.next()) {
+      result.add(termDocs.doc());
+    }
+    return result;
+  }
+
+  private static List<Integer> read(TermDocs termDocs) throws IOException {
+    List<Integer> result = new ArrayList<Integer>();
+    int[] docs = new int[8];
+    int[] freqs = new int[8];
+    int got;
+    while ((got = termDocs.read(docs, freqs)) > 0) {
+      for (int i = 0; i < got; i++) {
+        Assert.assertEquals(1, freqs[i]);
+        result.add(docs[i]);
+      }
+    }
+    return result;
+  }
+
+  private void assertTermDocs(BitsProvider provider) throws IOException {
+    IndexReader filtered = FilteredIndexReader.wrap(this.segment, provider);
+    Assert.assertEquals(expected(), next(filtered.termDocs(ALL)));
+    Assert.assertEquals(expected(), read(filtered.termDocs(ALL)));
+
+    TermDocs termDocs = filtered.termDocs(ALL);
+    Assert.assertTrue(termDocs.skipTo(1));
+    Assert.assertEquals(97, termDocs.doc());
+    Assert.assertTrue(termDocs.skipTo(490));
+    Assert.assertEquals(500, termDocs.doc());
+    Assert.assertTrue(termDocs.next());
+    Assert.assertEquals(501, termDocs.doc());
+    Assert.assertTrue(termDocs.skipTo(520));
+    Assert.assertEquals(582, termDocs.doc());
+    Assert.assertFalse(termDocs.skipTo(971));
+  }
+
+  @Test
+  public void testFixedBitSetTermDocs() throws Exception {
+    assertTermDocs(fixedProvider());
+  }
+
+  @Test
+  public void testOpaqueBitsTermDocs() throws Exception {
+    assertTermDocs(opaqueProvider());
+  }
+
+  private void assertNumDocs(BitsProvider provider) throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      Document doc = new Document();
+      doc.add(new Field("id", Integer.toString(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      w.addDocument(doc);
+    }
+    w.optimize();
+    w.deleteDocuments(new Term("id", "97"), new Term("id", "510"), new Term("id", "511"), new Term("id", "3"));
+    IndexReader reader = createReader(w);
+    IndexReader segment = reader.getSequentialSubReaders()[0];
+    Assert.assertTrue(segment.hasDeletions());
+
+    IndexReader filtered = FilteredIndexReader.wrap(segment, provider);
+    Assert.assertEquals(expected().size() - 3, filtered.numDocs());
+    Assert.assertEquals(expected().size() - 3, filtered.numDocs());
+
+    Assert.assertEquals(expected().size() - 3, FilteredIndexReader.wrap(reader, provider).numDocs());
+  }
+
+  @Test
+  public void testDeleteThroughReader() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      w.addDocument(new Document());
+    }
+    w.optimize();
+    Directory directory = w.getDirectory();
+    w.close();
+    IndexReader reader = IndexReader.open(directory, false);
+    FilteredIndexReader filtered = FilteredIndexReader.wrap(
+        reader.getSequentialSubReaders()[0], fixedProvider());
+    Assert.assertEquals(expected().size(), filtered.numDocs());
+    Assert.assertEquals(expected().size(), filtered.getLiveDocs().cardinality());
+
+    filtered.deleteDocument(97);
+    filtered.deleteDocument(98);
+    Assert.assertTrue(filtered.isDeleted(97));
+    Assert.assertEquals(expected().size() - 1, filtered.numDocs());
+    Assert.assertEquals(expected().size() - 1, filtered.getLiveDocs().cardinality());
+
+    filtered.undeleteAll();
+    Assert.assertEquals(expected().size(), filtered.numDocs());
+    Assert.assertEquals(expected().size(), filtered.getLiveDocs().cardinality());
+    reader.close();
+  }
+
+  @Test
+  public void testDeleteDuringCountIsNotCached() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      w.addDocument(new Document());
+    }
+    w.optimize();
+    Directory directory = w.getDirectory();
+    w.close();
+    IndexReader reader = IndexReader.open(directory, false);
+
+    // Deletes a document while the count is being computed.
+    final FilteredIndexReader[] filtered = new FilteredIndexReader[1];
+    filtered[0] = FilteredIndexReader.wrapLazily(
+        reader.getSequentialSubReaders()[0], new BitsProvider() {
+          @Override
+          public Bits get(IndexReader reader) throws IOException {
+            filtered[0].deleteDocument(97);
+            return FilteredSegmentReaderTest.this.allowed;
+          }
+        });
+    filtered[0].numDocs();
+    Assert.assertEquals(expected().size() - 1, filtered[0].numDocs());
+    Assert.assertEquals(expected().size() - 1, filtered[0].getLiveDocs().cardinality());
+    reader.close();
+  }
+
+  @Test
+  public void testFixedBitSetNumDocs() throws Exception {
+    assertNumDocs(fixedProvider());
+    Assert.assertEquals(expected().size(), FilteredIndexReader.wrap(this.segment, fixedProvider()).numDocs());
+  }
+
+  @Test
+  public void testOpaqueBitsNumDocs() throws Exception {
+    assertNumDocs(opaqueProvider());
+    Assert.assertEquals(expected().size(), FilteredIndexReader.wrap(this.segment, opaqueProvider()).numDocs());
+  }
+
+}
@@ -0,0 +1,76 @@
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SortedVIntList;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the multi-part doc id set.
+ */
+public class MultiDocIdSetTest {
+
+  private static final int[] DOCS = {1, 3, 12, 14, 15, 40, 41, 49};
+
+  private static MultiDocIdSet createSet() {
+    FixedBitSet bits = new FixedBitSet(10);
+    bits.set(1);
+    bits.set(3);
+    return new MultiDocIdSet(
+        new DocIdSet[] {
+            bits,
+            new SortedIntDocIdSet(new int[] {2, 4, 5}),
+            DocIdSet.EMPTY_DOCIDSET,
+            new SortedVIntList(0, 1, 9)},
+        new int[] {0, 10, 20, 40, 50});
+  }
+
+  @Test
+  public void testNextDoc() throws Exception {
+    DocIdSetIterator it = createSet().iterator();
+    Assert.assertEquals(-1, it.docID());
+    for (int doc : DOCS) {
+      Assert.assertEquals(doc, it.nextDoc());
+      Assert.assertEquals(doc, it.docID());
+    }
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.nextDoc());
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.docID());
+  }
+
+  @Test
+  public void testAdvanceEveryTarget() throws Exception {
+    for (int target = 0; target <= 51; target++) {
+      DocIdSetIterator it = createSet().iterator();
+      int expected = DocIdSetIterator.NO_MORE_DOCS;
+      for (int doc : DOCS) {
+        if (doc >= target) {
+          expected = doc;
+          break;
+        }
+      }
+      Assert.assertEquals("Advance to " + target, expected, it.advance(target));
+    }
+  }
+
+  @Test
+  public void testAdvanceAfterNextDoc() throws Exception {
+    DocIdSetIterator it = createSet().iterator();
+    Assert.assertEquals(1, it.nextDoc());
+    Assert.assertEquals(3, it.advance(2));
+    Assert.assertEquals(12, it.advance(4));
+    Assert.assertEquals(14, it.nextDoc());
+    Assert.assertEquals(40, it.advance(16));
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS,
+        it.advance(DocIdSetIterator.NO_MORE_DOCS));
+  }
+
+  @Test
+  public void testIsCacheable() throws Exception {
+    Assert.assertTrue(createSet().isCacheable());
+    Assert.assertFalse(new MultiDocIdSet(
+        new DocIdSet[] {DocIdSets.EMPTY}, new int[] {0, 10}).isCacheable());
+  }
+
+}
@@ -0,0 +1,158 @@
+package com.greplin.lucene.filter;
+
+import com.greplin.lucene.index.IndexReaders;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the persistent caching wrapper filter.
+ */
+public class PersistentCachingWrapperFilterTest extends BaseFilterTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private IndexWriter writer;
+
+  private IndexReader createReader() throws IOException {
+    this.writer = createWriter();
+    for (int segment = 0; segment < 2; segment++) {
+      for (int i = 0; i < 1000; i++) {
+        Document doc = new Document();
+        doc.add(new Field("f", i % 2 == 0 ? "even" : "odd", Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("g", i % 100 == 0 ? "rare" : "common", Field.Store.NO, Field.Index.NOT_ANALYZED));
+        this.writer.addDocument(doc);
+      }
+      this.writer.commit();
+    }
+    return IndexReader.open(this.writer.getDirectory());
+  }
+
+  private static class CountingFilter extends Filter {
+    private final Filter underlying;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private CountingFilter(Filter underlying) {
+      this.underlying = underlying;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+      this.calls.incrementAndGet();
+      return this.underlying.getDocIdSet(reader);
+    }
+  }
+
+  private static FixedBitSet toBits(IndexReader reader, DocIdSet docIdSet) throws IOException {
+    FixedBitSet result = new FixedBitSet(reader.maxDoc());
+    result.or(docIdSet.iterator());
+    return result;
+  }
+
+  private void assertSurvivesRestart(IndexReader reader, Filter filter, String filterId) throws IOException {
+    CountingFilter counting = new CountingFilter(filter);
+    Filter persistent = new PersistentCachingWrapperFilter(
+        counting, filterId, new PersistentFilterStore(this.folder.getRoot()));
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      Assert.assertEquals(toBits(subReader, filter.getDocIdSet(subReader)),
+          toBits(subReader, persistent.getDocIdSet(subReader)));
+    }
+    Assert.assertEquals(2, counting.calls.get());
+
+    // A new store over the same directory, as after a restart.
+    counting = new CountingFilter(filter);
+    persistent = new PersistentCachingWrapperFilter(
+        counting, filterId, new PersistentFilterStore(this.folder.getRoot()));
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      DocIdSet docIdSet = persistent.getDocIdSet(subReader);
+      Assert.assertEquals(toBits(subReader, filter.getDocIdSet(subReader)), toBits(subReader, docIdSet));
+      for (int target : new int[] {0, 1, 499, 500, 998, 999, 1000}) {
+        Assert.assertEquals(filter.getDocIdSet(subReader).iterator().advance(target),
+            docIdSet.iterator().advance(target));
+      }
+    }
+    Assert.assertEquals(0, counting.calls.get());
+  }
+
+  @Test
+  public void testDenseSurvivesRestart() throws Exception {
+    IndexReader reader = createReader();
+    assertSurvivesRestart(reader, TermsFilter.from(new Term("f", "even")), "even");
+
+    DocIdSet docIdSet = new PersistentCachingWrapperFilter(TermsFilter.from(new Term("f", "even")), "even",
+        new PersistentFilterStore(this.folder.getRoot())).getDocIdSet(reader.getSequentialSubReaders()[0]);
+    Assert.assertTrue(docIdSet instanceof Bits);
+    Assert.assertTrue(((Bits) docIdSet).get(998));
+    Assert.assertFalse(((Bits) docIdSet).get(999));
+  }
+
+  @Test
+  public void testSparseSurvivesRestart() throws Exception {
+    IndexReader reader = createReader();
+    assertSurvivesRestart(reader, TermsFilter.from(new Term("g", "rare")), "rare");
+  }
+
+  @Test
+  public void testCompositeReadersAreNotPersisted() throws Exception {
+    IndexReader reader = createReader();
+    Filter persistent = new PersistentCachingWrapperFilter(TermsFilter.from(new Term("f", "even")), "even",
+        new PersistentFilterStore(this.folder.getRoot()));
+    Assert.assertEquals(1000, toBits(reader, persistent.getDocIdSet(reader)).cardinality());
+    Assert.assertEquals(0, this.folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testStoreFailuresFallBackToComputing() throws Exception {
+    IndexReader reader = createReader();
+    Filter filter = TermsFilter.from(new Term("f", "even"));
+    PersistentFilterStore store = new PersistentFilterStore(this.folder.newFolder("store"));
+    CountingFilter counting = new CountingFilter(filter);
+    Filter persistent = new PersistentCachingWrapperFilter(counting, "even", store);
+
+    // Nothing can be written once the directory is gone.
+    Assert.assertTrue(new File(this.folder.getRoot(), "store").delete());
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      Assert.assertEquals(toBits(subReader, filter.getDocIdSet(subReader)),
+          toBits(subReader, persistent.getDocIdSet(subReader)));
+    }
+    Assert.assertEquals(2, counting.calls.get());
+  }
+
+  @Test
+  public void testRemoveStale() throws Exception {
+    IndexReader reader = createReader();
+    PersistentFilterStore store = new PersistentFilterStore(this.folder.getRoot());
+    Filter persistent = new PersistentCachingWrapperFilter(TermsFilter.from(new Term("f", "even")), "even", store);
+    for (IndexReader subReader : IndexReaders.gatherSubReaders(reader)) {
+      persistent.getDocIdSet(subReader);
+    }
+    Assert.assertEquals(2, this.folder.getRoot().list().length);
+
+    // Left behind by a write that crashed.
+    Assert.assertTrue(new File(this.folder.getRoot(), "_0.pending123.tmp").createNewFile());
+    store.removeStale(reader);
+    Assert.assertEquals(2, this.folder.getRoot().list().length);
+
+    this.writer.optimize();
+    this.writer.close();
+    IndexReader merged = IndexReader.openIfChanged(reader);
+    store.removeStale(merged);
+    Assert.assertEquals(0, this.folder.getRoot().list().length);
+  }
+
+}
@@ -1,18 +1,34 @@
 package com.greplin.lucene.filter;
 
+import com.google.common.collect.Sets;
+import com.greplin.lucene.analysis.BigramFilter;
 import com.greplin.lucene.predicate.BitsProvider;
 import com.greplin.lucene.util.BitsProviderIntersectionProvider;
 import com.greplin.lucene.util.FilterIntersectionProvider;
 import com.greplin.lucene.util.IntersectionProvider;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Test for phrase filters.
@@ -40,6 +56,25 @@ public class PhraseFilterTest extends BaseFilterTest {
     return createReader(w);
   }
 
+  private IndexReader createMultiSegmentReader() throws IOException {
+    IndexWriter w = createWriter();
+    String[] texts = {
+        "i love to say hello world to everyone",
+        "i hate to say world hello to anyone",
+        "hello hello world world",
+        "say hello world",
+        "world to say hello",
+    };
+    for (int i = 0; i < texts.length; i++) {
+      Document doc = new Document();
+      doc.add(new Field("f", texts[i], Field.Store.YES, Field.Index.ANALYZED));
+      doc.add(new Field("name", i % 2 == 0 ? "even" : "odd", Field.Store.NO, Field.Index.ANALYZED));
+      w.addDocument(doc);
+      w.commit();
+    }
+    return createReader(w);
+  }
+
   @Test
   public void testBasics() throws Exception {
     IndexReader reader = createReaderWithSampleDocuments();
@@ -98,4 +133,387 @@ public class PhraseFilterTest extends BaseFilterTest {
     assertFilterBitsEqual(reader, new PhraseFilter(predicate, "f", "hello", "world"), false, false, true);
   }
 
+  @Test
+  public void testMultipleSegments() throws Exception {
+    IndexReader reader = createMultiSegmentReader();
+    IntersectionProvider filter = new FilterIntersectionProvider(
+        TermsFilter.from(new Term("name", "even")));
+
+    assertFilterBitsEqual(reader, new PhraseFilter("f", "hello", "world"), true, false, true, true, false);
+    assertFilterBitsEqual(reader, new PhraseFilter("f", "to", "say"), true, true, false, false, true);
+    assertFilterBitsEqual(reader, new PhraseFilter(filter, "f", "hello", "world"), true, false, true, false, false);
+    assertFilterBitsEqual(reader, new PhraseFilter(filter, "f", "to", "say"), true, false, false, false, true);
+  }
+
+  @Test
+  public void testConcurrentSegments() throws Exception {
+    IndexReader reader = createMultiSegmentReader();
+    IntersectionProvider filter = new FilterIntersectionProvider(
+        TermsFilter.from(new Term("name", "even")));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      assertFilterBitsEqual(reader,
+          PhraseFilter.builder().executor(executor).add("f", "hello", "world").build(),
+          true, false, true, true, false);
+      assertFilterBitsEqual(reader,
+          PhraseFilter.builder().executor(executor).add("f", "world").build(),
+          true, true, true, true, true);
+      assertFilterBitsEqual(reader,
+          PhraseFilter.builder().executor(executor).intersectWith(filter).add("f", "to", "say").build(),
+          true, false, false, false, true);
+      assertFilterBitsEqual(reader,
+          PhraseFilter.builder().executor(executor).add("f", "hello", "everyone").build(),
+          false, false, false, false, false);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testMoreSegmentsThanThreads() throws Exception {
+    IndexWriter w = createWriter();
+    Random random = new Random(42);
+    String[] words = {"hello", "world", "to", "say"};
+    for (int i = 0; i < 140; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < 6; j++) {
+        text.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field("f", text.toString(), Field.Store.YES, Field.Index.ANALYZED));
+      w.addDocument(doc);
+      if (i % 20 == 19) {
+        w.commit();
+      }
+    }
+    IndexReader reader = createReader(w);
+    Assert.assertTrue(reader.getSequentialSubReaders().length > 2);
+
+    FixedBitSet expected = toBits(reader,
+        new PhraseFilter("f", "hello", "world").getDocIdSet(reader));
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      PhraseFilter filter = PhraseFilter.builder()
+          .executor(executor).add("f", "hello", "world").build();
+      for (int i = 0; i < 50; i++) {
+        Assert.assertEquals(expected, toBits(reader, filter.getDocIdSet(reader)));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // A pool whose only thread is busy never starts the queued tasks, so
+    // the calling thread has to match every segment itself.
+    ExecutorService busy = Executors.newSingleThreadExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      busy.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      PhraseFilter filter = PhraseFilter.builder()
+          .executor(busy).add("f", "hello", "world").build();
+      Assert.assertEquals(expected, toBits(reader, filter.getDocIdSet(reader)));
+    } finally {
+      release.countDown();
+      busy.shutdown();
+    }
+  }
+
+  @Test
+  public void testRareTermWithCommonTerm() throws Exception {
+    IndexWriter w = createWriter();
+    int docCount = 2000;
+    boolean[] rareFirst = new boolean[docCount];
+    boolean[] rareLast = new boolean[docCount];
+    for (int i = 0; i < docCount; i++) {
+      String text;
+      if (i % 397 == 5) {
+        text = "common rare common";
+        rareFirst[i] = true;
+        rareLast[i] = true;
+      } else if (i % 211 == 7) {
+        text = "rare other common";
+      } else if (i % 101 == 3) {
+        text = "common rare";
+        rareLast[i] = true;
+      } else {
+        text = "common common filler";
+      }
+      Document doc = new Document();
+      doc.add(new Field("f", text, Field.Store.NO, Field.Index.ANALYZED));
+      w.addDocument(doc);
+    }
+    IndexReader reader = createReader(w);
+
+    assertFilterBitsEqual(reader, new PhraseFilter("f", "rare", "common"), rareFirst);
+    assertFilterBitsEqual(reader, new PhraseFilter("f", "common", "rare"), rareLast);
+  }
+
+  @Test
+  public void testSlop() throws Exception {
+    IndexReader reader = createReaderWithSampleDocuments();
+
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(1).add("f", "love", "say").build(), true, false, false);
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(1).add("f", "say", "love").build(), false, false, false);
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(3).add("f", "say", "love").build(), true, false, false);
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(1).add("f", "world", "hello").build(), false, true, false);
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(2).add("f", "world", "hello").build(), true, true, true);
+    assertFilterBitsEqual(reader, PhraseFilter.builder().slop(2).add("f", "i", "to", "world").build(), false, true, false);
+  }
+
+  @Test
+  public void testSlopMatchesPhraseQuery() throws Exception {
+    String[] vocabulary = {"a", "b", "c", "d", "e", "f", "g"};
+    Random random = new Random(42);
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 300; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = random.nextInt(12) + 1;
+      for (int j = 0; j < length; j++) {
+        text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field("f", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+      w.addDocument(doc);
+      if (i % 100 == 99) {
+        w.commit();
+      }
+    }
+    IndexReader reader = createReader(w);
+
+    String[][] phrases = {{"a", "b"}, {"c", "a"}, {"a", "b", "c"}, {"g", "e", "c"}, {"d", "a", "f", "b"},
+        {"a", "a"}, {"b", "c", "b"}, {"d", "d", "d"}};
+    for (String[] phrase : phrases) {
+      boolean repeats = Sets.newHashSet(phrase).size() < phrase.length;
+      for (int slop = 0; slop <= 4; slop++) {
+        PhraseFilter.Builder builder = PhraseFilter.builder().slop(slop).add("f", phrase);
+        if (repeats && slop > 0) {
+          try {
+            builder.build();
+            Assert.fail("Phrase " + Arrays.toString(phrase) + " with slop " + slop);
+          } catch (IllegalArgumentException expected) {
+            // One occurrence could stand in for two positions.
+          }
+          continue;
+        }
+
+        PhraseQuery query = new PhraseQuery();
+        for (String term : phrase) {
+          query.add(new Term("f", term));
+        }
+        query.setSlop(slop);
+        FixedBitSet expected = toBits(reader, new QueryWrapperFilter(query).getDocIdSet(reader));
+        FixedBitSet actual = toBits(reader, builder.build().getDocIdSet(reader));
+        Assert.assertEquals("Phrase " + Arrays.toString(phrase) + " with slop " + slop, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testSlopRejectsRepeatedTerms() throws Exception {
+    assertRejected(PhraseFilter.builder().slop(1).add("f", "a", "b", "a"));
+    assertRejected(PhraseFilter.builder().slop(1).add("f", "a").addAny(new Term("f", "b"), new Term("f", "a")));
+    assertRejected(PhraseFilter.builder().slop(1).add("f", "apple").addPrefix(new Term("f", "app")));
+    assertRejected(PhraseFilter.builder().slop(1).addPrefix(new Term("f", "app")).addPrefix(new Term("f", "a")));
+
+    PhraseFilter.builder().slop(1).add("f", "a").addAny(new Term("f", "b"), new Term("g", "a")).build();
+    PhraseFilter.builder().slop(1).add("f", "bapple").addPrefix(new Term("f", "app")).build();
+    PhraseFilter.builder().add("f", "a", "a").build();
+  }
+
+  private static void assertRejected(PhraseFilter.Builder builder) {
+    try {
+      builder.build();
+      Assert.fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  private static FixedBitSet toBits(IndexReader reader, DocIdSet docIdSet) throws IOException {
+    FixedBitSet result = new FixedBitSet(reader.maxDoc());
+    result.or(docIdSet.iterator());
+    return result;
+  }
+
+  @Test
+  public void testAlternatives() throws Exception {
+    IndexReader reader = createReaderWithSampleDocuments();
+
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "hello").addAny(new Term("f", "world"), new Term("f", "to")).build(),
+        true, true, true);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().addAny(new Term("f", "love"), new Term("f", "hate")).add("f", "to", "say").build(),
+        true, true, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().addAny(new Term("f", "love"), new Term("f", "tomato")).add("f", "to").build(),
+        true, false, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().addAny(new Term("f", "tomato"), new Term("f", "potato")).add("f", "to").build(),
+        false, false, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().slop(1).addAny(new Term("f", "i"), new Term("f", "world")).add("f", "to").build(),
+        true, true, false);
+  }
+
+  @Test
+  public void testPrefix() throws Exception {
+    IndexReader reader = createMultiSegmentReader();
+
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "hello").addPrefix(new Term("f", "wor")).build(),
+        true, false, true, true, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "to").addPrefix(new Term("f", "s")).build(),
+        true, true, false, false, true);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "to").addPrefix(new Term("f", "e")).build(),
+        true, false, false, false, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "to").addPrefix(new Term("f", "z")).build(),
+        false, false, false, false, false);
+    assertFilterBitsEqual(reader,
+        PhraseFilter.builder().add("f", "to").addPrefix(new Term("name", "e")).build(),
+        false, false, false, false, false);
+  }
+
+  @Test
+  public void testPrefixMaxExpansions() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 5; i++) {
+      Document doc = new Document();
+      doc.add(new Field("f", "to s" + i, Field.Store.NO, Field.Index.ANALYZED));
+      w.addDocument(doc);
+    }
+    IndexReader reader = createReader(w);
+
+    PhraseFilter.Builder builder = PhraseFilter.builder().add("f", "to").addPrefix(new Term("f", "s"));
+    Assert.assertEquals(5, toBits(reader, builder.maxExpansions(5).build().getDocIdSet(reader)).cardinality());
+    try {
+      builder.maxExpansions(4).build().getDocIdSet(reader);
+      Assert.fail();
+    } catch (BooleanQuery.TooManyClauses expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testBigramField() throws Exception {
+    String[] vocabulary = {"a", "b", "c", "d", "e"};
+    Random random = new Random(7);
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 300; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = random.nextInt(12) + 1;
+      for (int j = 0; j < length; j++) {
+        text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field("f", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+      if (i < 200) {
+        // The last segment lacks bigrams, as if indexed before adopting them.
+        doc.add(new Field("f2", new BigramFilter(
+            new WhitespaceTokenizer(Version.LUCENE_32, new StringReader(text.toString())))));
+      }
+      w.addDocument(doc);
+      if (i % 100 == 99) {
+        w.commit();
+      }
+    }
+    IndexReader reader = createReader(w);
+
+    String[][] phrases = {{"a", "b"}, {"c", "c"}, {"a", "b", "c"}, {"e", "a", "e"}, {"d", "a", "b", "b"},
+        {"a", "b", "a", "b", "a"}, {"a", "z"}};
+    for (String[] phrase : phrases) {
+      FixedBitSet expected = toBits(reader, new PhraseFilter("f", phrase).getDocIdSet(reader));
+      FixedBitSet actual = toBits(reader, PhraseFilter.builder().bigramField("f2").add("f", phrase).build()
+          .getDocIdSet(reader));
+      Assert.assertEquals("Phrase " + Arrays.toString(phrase), expected, actual);
+    }
+  }
+
+  @Test
+  public void testBigramFieldMergedWithOldDocuments() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 20; i++) {
+      String text = i % 2 == 0 ? "a b c" : "c b a";
+      Document doc = new Document();
+      doc.add(new Field("f", text, Field.Store.NO, Field.Index.ANALYZED));
+      if (i >= 10) {
+        doc.add(new Field("f2", new BigramFilter(
+            new WhitespaceTokenizer(Version.LUCENE_32, new StringReader(text)))));
+      }
+      w.addDocument(doc);
+      if (i == 9) {
+        w.commit();
+      }
+    }
+    w.forceMerge(1);
+    IndexReader reader = createReader(w);
+    Assert.assertEquals(1, reader.getSequentialSubReaders().length);
+
+    PhraseFilter filter = PhraseFilter.builder().bigramField("f2").add("f", "a", "b").build();
+    Assert.assertEquals(10, toBits(reader, filter.getDocIdSet(reader)).cardinality());
+    Assert.assertTrue(filter.matchesAny(reader));
+  }
+
+  @Test
+  public void testMatchesAny() throws Exception {
+    IndexReader reader = createMultiSegmentReader();
+    IntersectionProvider odd = new FilterIntersectionProvider(TermsFilter.from(new Term("name", "odd")));
+
+    Assert.assertTrue(new PhraseFilter("f", "hello", "world").matchesAny(reader));
+    Assert.assertTrue(new PhraseFilter("f", "world", "to", "say").matchesAny(reader));
+    Assert.assertFalse(new PhraseFilter("f", "hello", "to", "everyone").matchesAny(reader));
+    Assert.assertFalse(new PhraseFilter("f", "tomato").matchesAny(reader));
+    Assert.assertFalse(new PhraseFilter(odd, "f", "love", "to").matchesAny(reader));
+    Assert.assertTrue(new PhraseFilter(odd, "f", "world", "hello").matchesAny(reader));
+    Assert.assertTrue(PhraseFilter.builder().slop(2).add("f", "hello", "to").build().matchesAny(reader));
+    Assert.assertFalse(PhraseFilter.builder().slop(1).add("f", "say", "love").build().matchesAny(reader));
+  }
+
+  @Test
+  public void testMatchesAnyAgreesWithDocIdSet() throws Exception {
+    String[] vocabulary = {"a", "b", "c", "d", "e", "f", "g", "h"};
+    Random random = new Random(11);
+    IndexWriter w = createWriter();
+    for (int i = 0; i < 3000; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = random.nextInt(8) + 1;
+      for (int j = 0; j < length; j++) {
+        text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(new Field("f", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+      w.addDocument(doc);
+    }
+    IndexReader reader = createReader(w);
+
+    for (int phraseLength = 1; phraseLength <= 5; phraseLength++) {
+      for (int attempt = 0; attempt < 20; attempt++) {
+        String[] phrase = new String[phraseLength];
+        for (int i = 0; i < phraseLength; i++) {
+          phrase[i] = vocabulary[random.nextInt(vocabulary.length)];
+        }
+        // Phrases that repeat a term only support exact matching.
+        int maxSlop = Sets.newHashSet(phrase).size() < phrase.length ? 0 : 2;
+        for (int slop = 0; slop <= maxSlop; slop++) {
+          PhraseFilter filter = PhraseFilter.builder().slop(slop).add("f", phrase).build();
+          boolean expected = toBits(reader, filter.getDocIdSet(reader)).cardinality() > 0;
+          Assert.assertEquals("Phrase " + Arrays.toString(phrase) + " with slop " + slop,
+              expected, filter.matchesAny(reader));
+        }
+      }
+    }
+  }
+
 }
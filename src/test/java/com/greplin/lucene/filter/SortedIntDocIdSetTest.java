@@ -0,0 +1,71 @@
+package com.greplin.lucene.filter;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the sorted int doc id set.
+ */
+public class SortedIntDocIdSetTest {
+
+  private static final int[] DOCS = {1, 3, 4, 8, 15, 16, 23, 42, 100, 1000};
+
+  @Test
+  public void testNextDoc() throws Exception {
+    DocIdSetIterator it = new SortedIntDocIdSet(DOCS).iterator();
+    Assert.assertEquals(-1, it.docID());
+    for (int doc : DOCS) {
+      Assert.assertEquals(doc, it.nextDoc());
+      Assert.assertEquals(doc, it.docID());
+    }
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.nextDoc());
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.docID());
+  }
+
+  @Test
+  public void testAdvance() throws Exception {
+    DocIdSetIterator it = new SortedIntDocIdSet(DOCS).iterator();
+    Assert.assertEquals(1, it.advance(0));
+    Assert.assertEquals(3, it.advance(2));
+    Assert.assertEquals(4, it.advance(4));
+    Assert.assertEquals(15, it.advance(9));
+    Assert.assertEquals(16, it.nextDoc());
+    Assert.assertEquals(100, it.advance(43));
+    Assert.assertEquals(1000, it.advance(1000));
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.advance(1001));
+  }
+
+  @Test
+  public void testAdvanceEveryTarget() throws Exception {
+    for (int target = 0; target <= 1001; target++) {
+      DocIdSetIterator it = new SortedIntDocIdSet(DOCS).iterator();
+      int expected = DocIdSetIterator.NO_MORE_DOCS;
+      for (int doc : DOCS) {
+        if (doc >= target) {
+          expected = doc;
+          break;
+        }
+      }
+      Assert.assertEquals("Advance to " + target, expected, it.advance(target));
+    }
+  }
+
+  @Test
+  public void testAdvancePastEnd() throws Exception {
+    DocIdSetIterator it = new SortedIntDocIdSet(DOCS).iterator();
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.advance(5000));
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.nextDoc());
+  }
+
+  @Test
+  public void testPrefix() throws Exception {
+    DocIdSetIterator it = new SortedIntDocIdSet(DOCS, 3).iterator();
+    Assert.assertEquals(3, it.advance(2));
+    Assert.assertEquals(4, it.nextDoc());
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.nextDoc());
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS,
+        new SortedIntDocIdSet(DOCS, 0).iterator().nextDoc());
+  }
+
+}
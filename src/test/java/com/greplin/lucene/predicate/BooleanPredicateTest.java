@@ -0,0 +1,186 @@
+package com.greplin.lucene.predicate;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for boolean predicates.
+ */
+public class BooleanPredicateTest {
+
+  private static final int DOCS = 200;
+
+  private static FixedBitSet bits(Random random, double density) {
+    FixedBitSet result = new FixedBitSet(DOCS);
+    for (int i = 0; i < DOCS; i++) {
+      if (random.nextDouble() < density) {
+        result.set(i);
+      }
+    }
+    return result;
+  }
+
+  private static Bits opaque(final Bits bits) {
+    return new Predicate() {
+      @Override
+      public boolean get(int index) {
+        return bits.get(index);
+      }
+    };
+  }
+
+  private static Bits randomBits(Random random, int depth) {
+    switch (random.nextInt(depth > 0 ? 6 : 4)) {
+      case 0:
+        return Predicates.ALL_BITS;
+      case 1:
+        return Predicates.NONE_BITS;
+      case 2:
+        return bits(random, random.nextDouble());
+      case 3:
+        return opaque(bits(random, random.nextDouble()));
+      default:
+        return randomPredicate(random, depth - 1);
+    }
+  }
+
+  private static BooleanPredicate randomPredicate(Random random, int depth) {
+    BooleanPredicate result = new BooleanPredicate();
+    int clauses = random.nextInt(5);
+    for (int i = 0; i < clauses; i++) {
+      result.add(randomBits(random, depth), BooleanClause.Occur.values()[random.nextInt(3)]);
+    }
+    return result;
+  }
+
+  private static void assertSameBits(Bits expected, Bits actual) {
+    for (int i = 0; i < DOCS; i++) {
+      Assert.assertEquals("doc " + i, expected.get(i), actual.get(i));
+    }
+  }
+
+  @Test
+  public void testOptimizeIsEquivalent() {
+    Random random = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      BooleanPredicate predicate = randomPredicate(random, 3);
+      assertSameBits(predicate, predicate.optimize());
+    }
+  }
+
+  @Test
+  public void testFoldsConstants() {
+    FixedBitSet a = bits(new Random(1), 0.5);
+
+    BooleanPredicate mustNone = new BooleanPredicate();
+    mustNone.add(a, BooleanClause.Occur.MUST);
+    mustNone.add(Predicates.NONE_BITS, BooleanClause.Occur.MUST);
+    Assert.assertSame(Predicates.NONE_BITS, mustNone.optimize());
+
+    BooleanPredicate mustAll = new BooleanPredicate();
+    mustAll.add(a, BooleanClause.Occur.MUST);
+    mustAll.add(Predicates.ALL_BITS, BooleanClause.Occur.MUST);
+    mustAll.add(Predicates.NONE_BITS, BooleanClause.Occur.MUST_NOT);
+    Assert.assertSame(a, mustAll.optimize());
+
+    BooleanPredicate shouldNone = new BooleanPredicate();
+    shouldNone.add(a, BooleanClause.Occur.MUST);
+    shouldNone.add(Predicates.NONE_BITS, BooleanClause.Occur.SHOULD);
+    Assert.assertSame(Predicates.NONE_BITS, shouldNone.optimize());
+
+    BooleanPredicate shouldAll = new BooleanPredicate();
+    shouldAll.add(a, BooleanClause.Occur.SHOULD);
+    shouldAll.add(Predicates.ALL_BITS, BooleanClause.Occur.SHOULD);
+    Assert.assertSame(Predicates.ALL_BITS, shouldAll.optimize());
+  }
+
+  @Test
+  public void testFlattensAndOrders() {
+    Random random = new Random(2);
+    FixedBitSet dense = bits(random, 0.9);
+    FixedBitSet medium = bits(random, 0.5);
+    FixedBitSet sparse = bits(random, 0.1);
+    Bits unknown = opaque(medium);
+
+    BooleanPredicate inner = new BooleanPredicate();
+    inner.add(dense, BooleanClause.Occur.MUST);
+    inner.add(sparse, BooleanClause.Occur.MUST);
+    BooleanPredicate outer = new BooleanPredicate();
+    outer.add(unknown, BooleanClause.Occur.MUST);
+    outer.add(inner, BooleanClause.Occur.MUST);
+    outer.add(medium, BooleanClause.Occur.MUST);
+
+    BooleanPredicate expected = new BooleanPredicate();
+    expected.add(sparse, BooleanClause.Occur.MUST);
+    expected.add(medium, BooleanClause.Occur.MUST);
+    expected.add(dense, BooleanClause.Occur.MUST);
+    expected.add(unknown, BooleanClause.Occur.MUST);
+    Assert.assertEquals(expected, outer.optimize());
+
+    BooleanPredicate or = new BooleanPredicate();
+    or.add(sparse, BooleanClause.Occur.SHOULD);
+    or.add(dense, BooleanClause.Occur.SHOULD);
+    BooleanPredicate not = new BooleanPredicate();
+    not.add(medium, BooleanClause.Occur.MUST);
+    not.add(or, BooleanClause.Occur.MUST_NOT);
+
+    expected = new BooleanPredicate();
+    expected.add(medium, BooleanClause.Occur.MUST);
+    expected.add(dense, BooleanClause.Occur.MUST_NOT);
+    expected.add(sparse, BooleanClause.Occur.MUST_NOT);
+    Assert.assertEquals(expected, not.optimize());
+  }
+
+  private static Bits randomBitSet(Random random, int depth) {
+    switch (random.nextInt(depth > 0 ? 3 : 2)) {
+      case 0:
+        return bits(random, random.nextDouble());
+      case 1:
+        OpenBitSet result = new OpenBitSet(DOCS + random.nextInt(100));
+        for (int i = 0; i < DOCS; i++) {
+          if (random.nextBoolean()) {
+            result.set(i);
+          }
+        }
+        return result;
+      default:
+        BooleanPredicate predicate = new BooleanPredicate();
+        int clauses = random.nextInt(4);
+        for (int i = 0; i < clauses; i++) {
+          predicate.add(randomBitSet(random, depth - 1), BooleanClause.Occur.values()[random.nextInt(3)]);
+        }
+        return predicate;
+    }
+  }
+
+  @Test
+  public void testMaterialize() {
+    Random random = new Random(3);
+    for (int i = 0; i < 500; i++) {
+      BooleanPredicate predicate = new BooleanPredicate();
+      int clauses = 1 + random.nextInt(4);
+      for (int j = 0; j < clauses; j++) {
+        predicate.add(randomBitSet(random, 2), BooleanClause.Occur.values()[random.nextInt(3)]);
+      }
+      FixedBitSet materialized = predicate.materialize(DOCS);
+      Assert.assertNotNull(materialized);
+      Assert.assertEquals(DOCS, materialized.length());
+      assertSameBits(predicate, materialized);
+    }
+  }
+
+  @Test
+  public void testMaterializeRequiresBitSets() {
+    BooleanPredicate predicate = new BooleanPredicate();
+    predicate.add(bits(new Random(4), 0.5), BooleanClause.Occur.MUST);
+    predicate.add(opaque(bits(new Random(5), 0.5)), BooleanClause.Occur.MUST);
+    Assert.assertNull(predicate.materialize(DOCS));
+  }
+
+}
@@ -0,0 +1,156 @@
+package com.greplin.lucene.predicate;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests for compiled predicates.
+ */
+public class CompiledPredicateTest {
+
+  private static final int DOCS = 300;
+
+  private static BitsProvider constant(final Bits bits) {
+    return new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        return bits;
+      }
+    };
+  }
+
+  private static Bits leaf(Random random) {
+    switch (random.nextInt(5)) {
+      case 0:
+        return Predicates.ALL_BITS;
+      case 1:
+        return Predicates.NONE_BITS;
+      case 2:
+        OpenBitSet openBitSet = new OpenBitSet(DOCS);
+        for (int i = 0; i < DOCS; i++) {
+          if (random.nextInt(3) == 0) {
+            openBitSet.set(i);
+          }
+        }
+        return openBitSet;
+      case 3:
+        final FixedBitSet hidden = new FixedBitSet(DOCS);
+        for (int i = 0; i < DOCS; i++) {
+          if (random.nextInt(3) == 0) {
+            hidden.set(i);
+          }
+        }
+        return new Predicate() {
+          @Override
+          public boolean get(int index) {
+            return hidden.get(index);
+          }
+        };
+      default:
+        FixedBitSet fixedBitSet = new FixedBitSet(DOCS);
+        double density = random.nextDouble();
+        for (int i = 0; i < DOCS; i++) {
+          if (random.nextDouble() < density) {
+            fixedBitSet.set(i);
+          }
+        }
+        return fixedBitSet;
+    }
+  }
+
+  private static BitsProvider randomProvider(Random random, int depth) {
+    int kind = depth == 0 ? 0 : random.nextInt(4);
+    switch (kind) {
+      case 0:
+        return constant(leaf(random));
+      case 1:
+        return Predicates.not(randomProvider(random, depth - 1));
+      default:
+        BooleanBitsProvider result = new BooleanBitsProvider();
+        int clauses = random.nextInt(5);
+        for (int i = 0; i < clauses; i++) {
+          result.add(randomProvider(random, depth - 1), BooleanClause.Occur.values()[random.nextInt(3)]);
+        }
+        return result;
+    }
+  }
+
+  /**
+   * The tree as the providers evaluate it, without compiling.
+   */
+  private static Bits interpreted(BitsProvider provider) throws IOException {
+    return provider.get(null);
+  }
+
+  @Test
+  public void testCompileIsEquivalent() throws Exception {
+    Random random = new Random(17);
+    for (int i = 0; i < 1000; i++) {
+      BitsProvider provider = randomProvider(random, 4);
+      Bits expected = interpreted(provider);
+      Bits compiled = Predicates.compile(provider).get(null);
+      for (int doc = 0; doc < DOCS; doc++) {
+        Assert.assertEquals("tree " + i + " doc " + doc, expected.get(doc), compiled.get(doc));
+      }
+    }
+  }
+
+  @Test
+  public void testFoldsNegations() throws Exception {
+    FixedBitSet a = new FixedBitSet(DOCS);
+    a.set(0, DOCS / 2);
+    FixedBitSet b = new FixedBitSet(DOCS);
+    b.set(DOCS / 4, DOCS);
+
+    Bits compiled = Predicates.compile(
+        Predicates.and(constant(a), Predicates.not(constant(b)))).get(null);
+    Assert.assertTrue(compiled instanceof CompiledPredicate);
+    for (int doc = 0; doc < DOCS; doc++) {
+      Assert.assertEquals(doc < DOCS / 4, compiled.get(doc));
+    }
+
+    Assert.assertSame(a, CompiledPredicate.compile(a));
+  }
+
+  @Test
+  public void testCacheKey() {
+    BitsProvider provider = Predicates.or(Predicates.ALL, Predicates.NONE);
+    Assert.assertSame(provider.getCacheKey(), Predicates.compile(provider).getCacheKey());
+  }
+
+  @Test
+  public void testForwardsDocIdSet() throws Exception {
+    final FixedBitSet bits = new FixedBitSet(DOCS);
+    BitsProvider iterable = new BitsProvider() {
+      @Override
+      public Bits get(IndexReader reader) {
+        return bits;
+      }
+
+      @Override
+      public DocIdSet getDocIdSet(IndexReader reader) {
+        return bits;
+      }
+    };
+    Assert.assertSame(bits, Predicates.compile(iterable).getDocIdSet(null));
+    Assert.assertSame(bits, BooleanBitsProvider.builder().must(iterable).build().getDocIdSet(null));
+    Assert.assertSame(bits, Predicates.compile(
+        BooleanBitsProvider.builder().must(iterable).build()).getDocIdSet(null));
+
+    Assert.assertNull(BooleanBitsProvider.builder().should(iterable).build().getDocIdSet(null));
+    Assert.assertNull(BooleanBitsProvider.builder().mustNot(iterable).build().getDocIdSet(null));
+    Assert.assertNull(BooleanBitsProvider.builder()
+        .must(iterable).must(Predicates.ALL).build().getDocIdSet(null));
+    Assert.assertNull(Predicates.compile(constant(bits)).getDocIdSet(null));
+  }
+
+}
@@ -0,0 +1,194 @@
+package com.greplin.lucene.predicate;
+
+import com.greplin.lucene.filter.BaseFilterTest;
+import com.greplin.lucene.filter.FilteredIndexReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.util.Bits;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Tests for field value predicates.
+ */
+public class FieldPredicatesTest extends BaseFilterTest {
+
+  private static final int DOCS = 100;
+
+  private static final long TIME_SCALE = 10000000000L;
+
+  private IndexReader reader;
+
+  @Before
+  public void setUp() throws Exception {
+    IndexWriter w = createWriter();
+    for (int i = 0; i < DOCS; i++) {
+      Document doc = new Document();
+      doc.add(new Field("all", "x", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      if (hasNumbers(i)) {
+        doc.add(new Field("n", Integer.toString(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("time", Long.toString(i * TIME_SCALE), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+      if (i % 10 != 9) {
+        doc.add(new Field("category", "c" + (i % 5), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+      w.addDocument(doc);
+      if (i % 40 == 39) {
+        w.commit();
+      }
+    }
+    this.reader = createReader(w);
+  }
+
+  /**
+   * Every seventh document has no numeric values, which the FieldCache reads as 0.
+   */
+  private static boolean hasNumbers(int i) {
+    return i % 7 != 6;
+  }
+
+  private interface Expectation {
+    boolean matches(int i);
+  }
+
+  private void assertMatches(BitsProvider provider, Expectation expectation) throws IOException {
+    int base = 0;
+    for (IndexReader segment : this.reader.getSequentialSubReaders()) {
+      Bits bits = provider.get(segment);
+      Assert.assertEquals(segment.maxDoc(), bits.length());
+      for (int doc = 0; doc < segment.maxDoc(); doc++) {
+        Assert.assertEquals("doc " + (base + doc), expectation.matches(base + doc), bits.get(doc));
+      }
+      base += segment.maxDoc();
+    }
+  }
+
+  @Test
+  public void testIntRange() throws Exception {
+    assertMatches(FieldPredicates.intRange("n", 10, 45), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i >= 10 && i <= 45;
+      }
+    });
+    assertMatches(FieldPredicates.intAtLeast("n", 90), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i >= 90;
+      }
+    });
+    assertMatches(FieldPredicates.intAtMost("n", 3), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i <= 3;
+      }
+    });
+  }
+
+  @Test
+  public void testMissingValuesDoNotMatchZero() throws Exception {
+    assertMatches(FieldPredicates.intRange("n", -5, 0), new Expectation() {
+      public boolean matches(int i) {
+        return i == 0;
+      }
+    });
+    assertMatches(FieldPredicates.intAtLeast("n", Integer.MIN_VALUE), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i);
+      }
+    });
+    assertMatches(FieldPredicates.longAtMost("time", 0), new Expectation() {
+      public boolean matches(int i) {
+        return i == 0;
+      }
+    });
+  }
+
+  @Test
+  public void testLongRange() throws Exception {
+    assertMatches(FieldPredicates.longRange("time", 5 * TIME_SCALE, 50 * TIME_SCALE - 1), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i >= 5 && i < 50;
+      }
+    });
+    assertMatches(FieldPredicates.longAtLeast("time", 99 * TIME_SCALE), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i == 99;
+      }
+    });
+    assertMatches(FieldPredicates.longAtMost("time", TIME_SCALE), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && i <= 1;
+      }
+    });
+  }
+
+  @Test
+  public void testIntIn() throws Exception {
+    assertMatches(FieldPredicates.intIn("n", 77, 3, 41, 1000), new Expectation() {
+      public boolean matches(int i) {
+        return hasNumbers(i) && (i == 3 || i == 41 || i == 77);
+      }
+    });
+    assertMatches(FieldPredicates.intIn("n", 0, 13), new Expectation() {
+      public boolean matches(int i) {
+        return i == 0;
+      }
+    });
+    assertMatches(FieldPredicates.intIn("n"), new Expectation() {
+      public boolean matches(int i) {
+        return false;
+      }
+    });
+  }
+
+  @Test
+  public void testStringIn() throws Exception {
+    assertMatches(FieldPredicates.stringIn("category", "c4", "c1", "missing"), new Expectation() {
+      public boolean matches(int i) {
+        return i % 10 != 9 && (i % 5 == 1 || i % 5 == 4);
+      }
+    });
+  }
+
+  @Test
+  public void testFilteredIndexReader() throws Exception {
+    IndexReader filtered = FilteredIndexReader.wrap(this.reader,
+        Predicates.and(FieldPredicates.intRange("n", 20, 69), FieldPredicates.stringIn("category", "c0")));
+    // 20 and 55 have no value for n.
+    Assert.assertEquals(8, filtered.numDocs());
+
+    TermDocs termDocs = filtered.termDocs(new Term("all", "x"));
+    int count = 0;
+    while (termDocs.next()) {
+      Assert.assertEquals(0, termDocs.doc() % 5);
+      count++;
+    }
+    Assert.assertEquals(8, count);
+  }
+
+  @Test
+  public void testEquality() {
+    Assert.assertEquals(FieldPredicates.intRange("n", 1, 2), FieldPredicates.intRange("n", 1, 2));
+    Assert.assertEquals(FieldPredicates.intRange("n", 1, 2).hashCode(), FieldPredicates.intRange("n", 1, 2).hashCode());
+    Assert.assertFalse(FieldPredicates.intRange("n", 1, 2).equals(FieldPredicates.intRange("n", 1, 3)));
+    Assert.assertFalse(FieldPredicates.intRange("n", 1, 2).equals(FieldPredicates.longRange("n", 1, 2)));
+    Assert.assertEquals(FieldPredicates.longAtLeast("t", 5), FieldPredicates.longRange("t", 5, Long.MAX_VALUE));
+    Assert.assertEquals(FieldPredicates.intIn("n", 3, 1, 2), FieldPredicates.intIn("n", 1, 2, 3));
+    Assert.assertEquals(FieldPredicates.intIn("n", 3, 1).hashCode(), FieldPredicates.intIn("n", 1, 3).hashCode());
+    Assert.assertEquals(FieldPredicates.stringIn("c", "b", "a"), FieldPredicates.stringIn("c", "a", "b"));
+    Assert.assertFalse(FieldPredicates.stringIn("c", "a").equals(FieldPredicates.stringIn("d", "a")));
+  }
+
+  @Test
+  public void testToString() {
+    Assert.assertEquals("n:[1 TO 2]", FieldPredicates.intRange("n", 1, 2).toString());
+    Assert.assertEquals("n:{1, 2}", FieldPredicates.intIn("n", 2, 1).toString());
+    Assert.assertEquals("c:{a, b}", FieldPredicates.stringIn("c", "b", "a").toString());
+  }
+
+}
@@ -0,0 +1,105 @@
+package com.greplin.lucene.predicate;
+
+import com.greplin.lucene.filter.SortedIntDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests for predicate doc id sets.
+ */
+public class PredicateDocIdSetTest {
+
+  private static final int DOCS = 1000;
+
+  private static FixedBitSet bits(Random random, double density) {
+    FixedBitSet result = new FixedBitSet(DOCS);
+    for (int i = 0; i < DOCS; i++) {
+      if (random.nextDouble() < density) {
+        result.set(i);
+      }
+    }
+    return result;
+  }
+
+  private static SortedIntDocIdSet sortedInts(FixedBitSet bits) {
+    int[] ints = new int[bits.cardinality()];
+    int n = 0;
+    for (int i = 0; i < DOCS; i++) {
+      if (bits.get(i)) {
+        ints[n++] = i;
+      }
+    }
+    return new SortedIntDocIdSet(ints);
+  }
+
+  /**
+   * Hides the type of a doc id set, so its cost is unknown.
+   */
+  private static DocIdSet opaque(DocIdSet docIdSet) {
+    return new FilteredDocIdSet(docIdSet) {
+      @Override
+      protected boolean match(int docid) {
+        return true;
+      }
+    };
+  }
+
+  private static void assertIntersection(FixedBitSet docs, FixedBitSet predicate, PredicateDocIdSet set)
+      throws IOException {
+    DocIdSetIterator it = set.iterator();
+    for (int i = 0; i < DOCS; i++) {
+      if (docs.get(i) && predicate.get(i)) {
+        Assert.assertEquals(i, it.nextDoc());
+        Assert.assertEquals(i, it.docID());
+      }
+    }
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.nextDoc());
+
+    for (int target = 0; target < DOCS; target += 37) {
+      int expected = DocIdSetIterator.NO_MORE_DOCS;
+      for (int i = target; i < DOCS; i++) {
+        if (docs.get(i) && predicate.get(i)) {
+          expected = i;
+          break;
+        }
+      }
+      Assert.assertEquals("advance to " + target, expected, set.iterator().advance(target));
+    }
+  }
+
+  @Test
+  public void testIntersection() throws Exception {
+    Random random = new Random(11);
+    double[] densities = {0.001, 0.01, 0.1, 0.5, 0.9};
+    for (double docDensity : densities) {
+      for (double predicateDensity : densities) {
+        FixedBitSet docs = bits(random, docDensity);
+        FixedBitSet predicate = bits(random, predicateDensity);
+
+        assertIntersection(docs, predicate, new PredicateDocIdSet(docs, predicate));
+        assertIntersection(docs, predicate, new PredicateDocIdSet(opaque(docs), predicate));
+        assertIntersection(docs, predicate, PredicateDocIdSet.intersection(docs, predicate));
+        assertIntersection(docs, predicate, PredicateDocIdSet.intersection(docs, sortedInts(predicate)));
+        assertIntersection(docs, predicate, PredicateDocIdSet.intersection(opaque(docs), sortedInts(predicate)));
+        assertIntersection(docs, predicate, PredicateDocIdSet.intersection(sortedInts(docs), sortedInts(predicate)));
+        assertIntersection(docs, predicate, PredicateDocIdSet.intersection(docs, opaque(sortedInts(predicate))));
+      }
+    }
+  }
+
+  @Test
+  public void testEmptyPredicate() throws Exception {
+    FixedBitSet docs = bits(new Random(12), 0.5);
+    DocIdSet set = PredicateDocIdSet.intersection(docs, new SortedIntDocIdSet(new int[0]));
+    DocIdSetIterator it = set.iterator();
+    Assert.assertTrue(it == null || it.nextDoc() == DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+}